@@ -0,0 +1,319 @@
+package com.egopulse.querydsl.mongodb.benchmarks;
+
+import com.egopulse.querydsl.mongodb.MongoQuery;
+import com.egopulse.querydsl.mongodb.QueryPlanCache;
+import com.egopulse.querydsl.mongodb.domain.QUser;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.rx.client.MongoClient;
+import com.mongodb.rx.client.MongoClients;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.IMongodConfig;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bson.Document;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Drives {@link MongoQuery} fetches of the test {@code User} domain against an embedded mongod and reports
+ * throughput and latency percentiles per query shape.
+ * <pre>
+ * java -cp target/benchmarks.jar com.egopulse.querydsl.mongodb.benchmarks.LoadHarness \
+ *     --users=100000 --concurrency=32 --duration=30 --mode=direct
+ * </pre>
+ * Options:
+ * <ul>
+ * <li>{@code users} number of seeded users, default 100000</li>
+ * <li>{@code concurrency} number of queries kept in flight, default 16</li>
+ * <li>{@code rate} queries per second, switches from fixed concurrency to a fixed arrival rate. Latencies are
+ * measured from the intended start time, so queueing behind slow queries is included.</li>
+ * <li>{@code warmup} and {@code duration} seconds per shape, default 10 and 30</li>
+ * <li>{@code shapes} comma separated shapes, default all of {@link Shape}</li>
+ * <li>{@code mode} execution mode: default, direct (direct filters) or planCache</li>
+ * <li>{@code indexes} false to query without secondary indexes</li>
+ * </ul>
+ */
+public final class LoadHarness {
+
+    private static final String COLLECTION = "user";
+
+    private static final List<String> FIRST_NAMES = Arrays.asList(
+            "Jaakko", "Jaana", "Matti", "Teppo", "Liisa", "Maija", "Pekka", "Anna", "Ville", "Sari");
+
+    private static final List<String> LAST_NAMES = Arrays.asList(
+            "Jantunen", "Aakkonen", "Virtanen", "Korhonen", "Nieminen", "Mäkinen", "Hämäläinen", "Laine");
+
+    private static final List<String> CITIES = Arrays.asList(
+            "Helsinki", "Espoo", "Tampere", "Turku", "Oulu", "Jyväskylä", "Lahti", "Kuopio");
+
+    private static final QUser USER = QUser.user;
+
+    /**
+     * Query shapes, each picking random values per query
+     */
+    enum Shape {
+        byFirstName {
+            @Override
+            Observable<?> run(MongoQuery query, ThreadLocalRandom random) {
+                return query.where(USER.firstName.eq(pick(FIRST_NAMES, random))).fetchFrom(COLLECTION);
+            }
+        },
+        ageRangeSorted {
+            @Override
+            Observable<?> run(MongoQuery query, ThreadLocalRandom random) {
+                int age = 18 + random.nextInt(60);
+                return query.where(USER.age.between(age, age + 5)).orderBy(USER.lastName.asc()).limit(50)
+                        .fetchFrom(COLLECTION);
+            }
+        },
+        nestedCity {
+            @Override
+            Observable<?> run(MongoQuery query, ThreadLocalRandom random) {
+                return query.where(USER.mainAddress.city.name.eq(pick(CITIES, random))).limit(100)
+                        .fetchFrom(COLLECTION);
+            }
+        },
+        lastNamePrefix {
+            @Override
+            Observable<?> run(MongoQuery query, ThreadLocalRandom random) {
+                return query.where(USER.lastName.startsWith(pick(LAST_NAMES, random).substring(0, 3))).limit(50)
+                        .fetchFrom(COLLECTION);
+            }
+        },
+        count {
+            @Override
+            Observable<?> run(MongoQuery query, ThreadLocalRandom random) {
+                return query.where(USER.firstName.eq(pick(FIRST_NAMES, random)).and(USER.age.gt(40)))
+                        .fetchCount(COLLECTION);
+            }
+        };
+
+        abstract Observable<?> run(MongoQuery query, ThreadLocalRandom random);
+    }
+
+    private LoadHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int users = Integer.parseInt(options.getOrDefault("users", "100000"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "0"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        String mode = options.getOrDefault("mode", "default");
+        boolean indexes = Boolean.parseBoolean(options.getOrDefault("indexes", "true"));
+        List<Shape> shapes = new ArrayList<Shape>();
+        if (options.containsKey("shapes")) {
+            for (String shape : options.get("shapes").split(",")) {
+                shapes.add(Shape.valueOf(shape.trim()));
+            }
+        } else {
+            shapes.addAll(Arrays.asList(Shape.values()));
+        }
+
+        int port = Network.getFreeServerPort();
+        IMongodConfig config = new MongodConfigBuilder()
+                .version(Version.Main.PRODUCTION)
+                .net(new Net(port, Network.localhostIsIPv6()))
+                .build();
+        MongodExecutable exe = MongodStarter.getDefaultInstance().prepare(config);
+        MongodProcess process = exe.start();
+        MongoClient client = MongoClients.create("mongodb://localhost:" + port);
+        try {
+            MongoDatabase database = client.getDatabase("load");
+            seed(database.getCollection(COLLECTION), users, indexes);
+            Supplier<MongoQuery> queries = createQueries(database, mode);
+            System.out.printf("%d users, mode %s, %s%n", users, mode,
+                    rate > 0 ? rate + " queries/s" : concurrency + " concurrent queries");
+            for (Shape shape : shapes) {
+                Supplier<Observable<?>> query = () -> shape.run(queries.get(), ThreadLocalRandom.current());
+                run(query, concurrency, rate, warmup);
+                Result result = run(query, concurrency, rate, duration);
+                result.print(shape.name());
+            }
+        } finally {
+            client.close();
+            process.stop();
+            exe.stop();
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, was " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static Supplier<MongoQuery> createQueries(MongoDatabase database, String mode) {
+        switch (mode) {
+            case "default":
+                return () -> MongoQuery.forDatabase(database);
+            case "direct":
+                return () -> MongoQuery.forDatabase(database).directFilters(true);
+            case "planCache":
+                QueryPlanCache planCache = new QueryPlanCache();
+                return () -> MongoQuery.forDatabase(database).planCache(planCache);
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    private static void seed(MongoCollection<Document> users, int count, boolean indexes) {
+        Random random = new Random(42);
+        List<Document> batch = new ArrayList<Document>(1000);
+        for (int i = 0; i < count; i++) {
+            Document city = new Document("name", pick(CITIES, random))
+                    .append("latitude", 60 + random.nextDouble() * 5)
+                    .append("longitude", 22 + random.nextDouble() * 8);
+            Document address = new Document("street", "Katu " + random.nextInt(100))
+                    .append("postCode", String.format("%05d", random.nextInt(100000)))
+                    .append("city", city);
+            batch.add(new Document("firstName", pick(FIRST_NAMES, random))
+                    .append("lastName", pick(LAST_NAMES, random))
+                    .append("age", 18 + random.nextInt(70))
+                    .append("created", new Date(random.nextInt(Integer.MAX_VALUE) * 1000L))
+                    .append("gender", random.nextBoolean() ? "MALE" : "FEMALE")
+                    .append("mainAddress", address)
+                    .append("addresses", Arrays.asList(address)));
+            if (batch.size() == 1000 || i == count - 1) {
+                users.insertMany(batch).toBlocking().single();
+                batch = new ArrayList<Document>(1000);
+            }
+        }
+        if (indexes) {
+            users.createIndex(Indexes.ascending("firstName")).toBlocking().single();
+            users.createIndex(Indexes.ascending("age", "lastName")).toBlocking().single();
+            users.createIndex(Indexes.ascending("lastName")).toBlocking().single();
+            users.createIndex(Indexes.ascending("mainAddress.city.name")).toBlocking().single();
+        }
+    }
+
+    private static <T> T pick(List<T> values, Random random) {
+        return values.get(random.nextInt(values.size()));
+    }
+
+    private static Result run(Supplier<Observable<?>> query, int concurrency, int rate, long duration)
+            throws InterruptedException {
+        return rate > 0 ? runAtRate(query, rate, duration) : runAtConcurrency(query, concurrency, duration);
+    }
+
+    private static Result runAtConcurrency(Supplier<Observable<?>> query, int concurrency, long duration)
+            throws InterruptedException {
+        Result result = new Result();
+        long end = System.nanoTime() + duration;
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            loop(query, result, end, done);
+        }
+        done.await();
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void loop(Supplier<Observable<?>> query, Result result, long end, CountDownLatch done) {
+        long start = System.nanoTime();
+        if (start >= end) {
+            done.countDown();
+            return;
+        }
+        query.get().subscribe(
+                value -> { },
+                e -> {
+                    result.record(start, false);
+                    loop(query, result, end, done);
+                },
+                () -> {
+                    result.record(start, true);
+                    loop(query, result, end, done);
+                });
+    }
+
+    private static Result runAtRate(Supplier<Observable<?>> query, int rate, long duration)
+            throws InterruptedException {
+        Result result = new Result();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        AtomicLong pending = new AtomicLong();
+        for (long intended = start; intended < start + duration; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long scheduled = intended;
+            pending.incrementAndGet();
+            query.get().subscribe(
+                    value -> { },
+                    e -> {
+                        result.record(scheduled, false);
+                        pending.decrementAndGet();
+                    },
+                    () -> {
+                        result.record(scheduled, true);
+                        pending.decrementAndGet();
+                    });
+        }
+        while (pending.get() > 0) {
+            Thread.sleep(10);
+        }
+        result.elapsed = System.nanoTime() - start;
+        return result;
+    }
+
+    private static final class Result {
+
+        private final Recorder latencies = new Recorder(3);
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private long elapsed;
+
+        void record(long start, boolean success) {
+            latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+
+        void print(String shape) {
+            Histogram histogram = latencies.getIntervalHistogram();
+            double seconds = elapsed / 1e9;
+            System.out.printf("%-16s %10.0f ops/s  p50 %8.3f ms  p99 %8.3f ms  p99.9 %8.3f ms  max %8.3f ms  errors %d%n",
+                    shape,
+                    histogram.getTotalCount() / seconds,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0,
+                    errors.get());
+        }
+    }
+
+}
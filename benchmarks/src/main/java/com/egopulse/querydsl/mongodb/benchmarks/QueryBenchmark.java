@@ -0,0 +1,79 @@
+package com.egopulse.querydsl.mongodb.benchmarks;
+
+import com.egopulse.querydsl.mongodb.MongoQuery;
+import com.egopulse.querydsl.mongodb.SerializedQuery;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.rx.client.MongoClient;
+import com.mongodb.rx.client.MongoClients;
+import com.mongodb.rx.client.MongoDatabase;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a complete {@link MongoQuery} and serializing its filter and sort through the query, the way
+ * a fetch does. The client never connects, no server is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"deepAndOr", "largeIn", "regex", "nested"})
+    public String shape;
+
+    private final CodecRegistry codecRegistry = MongoClientSettings.builder().build().getCodecRegistry();
+
+    private MongoClient client;
+
+    private MongoDatabase database;
+
+    private Predicate predicate;
+
+    @Setup
+    public void setup() {
+        client = MongoClients.create("mongodb://localhost");
+        database = client.getDatabase("benchmarks");
+        predicate = Shapes.of(shape);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public MongoQuery build() {
+        return MongoQuery.forDatabase(database)
+                .where(predicate)
+                .orderBy(Shapes.ORDER.toArray(new OrderSpecifier<?>[0]))
+                .limit(50);
+    }
+
+    @Benchmark
+    public void buildAndSerialize(Blackhole blackhole) {
+        SerializedQuery query = build().serialize();
+        blackhole.consume(query.getFilter().toBsonDocument(BsonDocument.class, codecRegistry));
+        blackhole.consume(query.getSort().toBsonDocument(BsonDocument.class, codecRegistry));
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.egopulse.querydsl.mongodb.benchmarks;
+
+import com.egopulse.querydsl.mongodb.DirectBsonFilter;
+import com.egopulse.querydsl.mongodb.MongodbSerializer;
+import com.mongodb.async.client.MongoClientSettings;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MongodbSerializer} on representative predicate shapes, see {@link Shapes}.
+ * <p>
+ * {@code handle} only builds the driver filters, which render lazily, so {@code render} measures
+ * the cost of a filter sent to the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({"deepAndOr", "largeIn", "regex", "nested"})
+    public String shape;
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+
+    private final CodecRegistry codecRegistry = MongoClientSettings.builder().build().getCodecRegistry();
+
+    private Predicate predicate;
+
+    @Setup
+    public void setup() {
+        predicate = Shapes.of(shape);
+    }
+
+    @Benchmark
+    public Object handle() {
+        return serializer.handle(predicate);
+    }
+
+    @Benchmark
+    public BsonDocument render() {
+        return ((Bson) serializer.handle(predicate)).toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+    @Benchmark
+    public BsonDocument renderDirect() {
+        return new DirectBsonFilter(predicate, serializer).toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+    @Benchmark
+    public BsonDocument toSort() {
+        return serializer.toSort(Shapes.ORDER).toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+    @Benchmark
+    public BsonDocument toProjection() {
+        return serializer.toProjection(Shapes.PROJECTION).toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.egopulse.querydsl.mongodb.benchmarks;
+
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.Projections;
+import com.querydsl.core.types.dsl.BooleanExpression;
+import com.querydsl.core.types.dsl.NumberPath;
+import com.querydsl.core.types.dsl.PathBuilder;
+import com.querydsl.core.types.dsl.StringPath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Representative predicate shapes, built on dynamic paths so the benchmarks don't need generated query types.
+ */
+final class Shapes {
+
+    static final PathBuilder<Object> USER = new PathBuilder<Object>(Object.class, "user");
+
+    static final StringPath FIRST_NAME = USER.getString("firstName");
+
+    static final StringPath LAST_NAME = USER.getString("lastName");
+
+    static final NumberPath<Integer> AGE = USER.getNumber("age", Integer.class);
+
+    static final PathBuilder<Object> ADDRESS = USER.get("mainAddress");
+
+    static final StringPath STREET = ADDRESS.getString("street");
+
+    static final StringPath CITY = ADDRESS.get("city").getString("name");
+
+    static final StringPath COUNTRY = ADDRESS.get("city").get("country").getString("code");
+
+    static final List<OrderSpecifier<?>> ORDER = Arrays.<OrderSpecifier<?>>asList(
+            LAST_NAME.asc(), FIRST_NAME.asc(), AGE.desc());
+
+    static final Expression<?> PROJECTION = Projections.tuple(FIRST_NAME, LAST_NAME, AGE, CITY);
+
+    private Shapes() {
+    }
+
+    /**
+     * @param shape one of deepAndOr, largeIn, regex or nested
+     * @return predicate of the given shape
+     */
+    static Predicate of(String shape) {
+        switch (shape) {
+            case "deepAndOr":
+                return deepAndOr(8);
+            case "largeIn":
+                return largeIn(1000);
+            case "regex":
+                return regex();
+            case "nested":
+                return nested();
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private static BooleanExpression deepAndOr(int depth) {
+        BooleanExpression predicate = FIRST_NAME.eq("Jaana");
+        for (int i = 0; i < depth; i++) {
+            BooleanExpression branch = AGE.gt(i).and(LAST_NAME.ne("Name" + i));
+            predicate = i % 2 == 0 ? predicate.and(branch) : predicate.or(branch);
+        }
+        return predicate;
+    }
+
+    private static BooleanExpression largeIn(int size) {
+        List<String> names = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            names.add("Name" + i);
+        }
+        return LAST_NAME.in(names).and(AGE.goe(18));
+    }
+
+    private static BooleanExpression regex() {
+        return FIRST_NAME.startsWith("Jaa")
+                .and(LAST_NAME.containsIgnoreCase("kkone"))
+                .and(STREET.endsWith("katu"))
+                .and(CITY.like("Hel%"))
+                .and(COUNTRY.matches("F[IN]"));
+    }
+
+    private static BooleanExpression nested() {
+        return STREET.eq("Mannerheimintie")
+                .and(CITY.eq("Helsinki"))
+                .and(COUNTRY.in("FI", "SE", "NO"))
+                .and(ADDRESS.getNumber("number", Integer.class).between(1, 100));
+    }
+
+}
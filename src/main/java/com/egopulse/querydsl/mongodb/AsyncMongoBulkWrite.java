@@ -0,0 +1,273 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.bulk.WriteConcernError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import org.bson.Document;
+import rx.Observable;
+import rx.exceptions.CompositeException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@code AsyncMongoBulkWrite} collects inserts, update and delete clauses into bulk writes.
+ * <pre>
+ * AsyncMongoBulkWrite bulk = AsyncMongoBulkWrite.forDatabase(database).ordered(false).chunkSize(500);
+ * for (Change change : changes) {
+ *     bulk.update().where(user.id.eq(change.getId())).set(user.lastName, change.getLastName());
+ * }
+ * bulk.executeOn("user");
+ * </pre>
+ * The writes are sent in chunks of at most {@link #chunkSize(int)} operations. Ordered chunks are sent one
+ * after another and stop at the first error, unordered chunks are sent concurrently and all of them run to
+ * completion. Write errors are raised as one {@link MongoBulkWriteException} with the combined result of all
+ * chunks and the indexes of the failed writes among all collected writes.
+ */
+public class AsyncMongoBulkWrite {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final MongoDatabase database;
+
+    private final List<Object> clauses = new ArrayList<Object>();
+
+    private boolean ordered = true;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    protected AsyncMongoBulkWrite(MongoDatabase database) {
+        this.database = database;
+    }
+
+    public static AsyncMongoBulkWrite forDatabase(MongoDatabase database) {
+        return new AsyncMongoBulkWrite(database);
+    }
+
+    /**
+     * Execute the writes in order, stopping at the first error
+     *
+     * @param ordered false to let the server execute the writes in any order and continue past errors
+     * @return the current object
+     */
+    public AsyncMongoBulkWrite ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of writes sent in one bulk write
+     *
+     * @param chunkSize chunk size
+     * @return the current object
+     */
+    public AsyncMongoBulkWrite chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive, was " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Add an update
+     *
+     * @return update clause to be executed with this bulk write
+     */
+    public AsyncMongoUpdateClause update() {
+        AsyncMongoUpdateClause clause = new AsyncMongoUpdateClause(null);
+        clauses.add(clause);
+        return clause;
+    }
+
+    /**
+     * Add a delete
+     *
+     * @return delete clause to be executed with this bulk write
+     */
+    public AsyncMongoDeleteClause delete() {
+        AsyncMongoDeleteClause clause = new AsyncMongoDeleteClause(null);
+        clauses.add(clause);
+        return clause;
+    }
+
+    /**
+     * Add an update
+     *
+     * @param clause update clause
+     * @return the current object
+     */
+    public AsyncMongoBulkWrite add(AsyncMongoUpdateClause clause) {
+        clauses.add(clause);
+        return this;
+    }
+
+    /**
+     * Add a delete
+     *
+     * @param clause delete clause
+     * @return the current object
+     */
+    public AsyncMongoBulkWrite add(AsyncMongoDeleteClause clause) {
+        clauses.add(clause);
+        return this;
+    }
+
+    /**
+     * Add an insert
+     *
+     * @param document document to insert
+     * @return the current object
+     */
+    public AsyncMongoBulkWrite insert(Document document) {
+        clauses.add(new InsertOneModel<Document>(document));
+        return this;
+    }
+
+    /**
+     * @return number of collected writes
+     */
+    public int size() {
+        return clauses.size();
+    }
+
+    /**
+     * Execute the collected writes on the given collection
+     *
+     * @param collection collection name
+     * @return combined result of all chunks
+     */
+    @SuppressWarnings("unchecked")
+    public Observable<BulkWriteResult> executeOn(String collection) {
+        List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>(clauses.size());
+        for (Object clause : clauses) {
+            if (clause instanceof AsyncMongoUpdateClause) {
+                writes.add(((AsyncMongoUpdateClause) clause).<Document>toWriteModel());
+            } else if (clause instanceof AsyncMongoDeleteClause) {
+                writes.add(((AsyncMongoDeleteClause) clause).<Document>toWriteModel());
+            } else {
+                writes.add((WriteModel<Document>) clause);
+            }
+        }
+        if (writes.isEmpty()) {
+            return Observable.just(BulkWriteResult.acknowledged(0, 0, 0, 0, new ArrayList<BulkWriteUpsert>()));
+        }
+        MongoCollection<Document> target = database.getCollection(collection)
+                .withCodecRegistry(GeneratedCodecProvider.withGeneratedCodecs(database.getCodecRegistry()));
+        BulkWriteOptions options = new BulkWriteOptions().ordered(ordered);
+        List<Observable<BulkWriteResult>> chunks = new ArrayList<Observable<BulkWriteResult>>();
+        for (int offset = 0; offset < writes.size(); offset += chunkSize) {
+            int start = offset;
+            List<WriteModel<Document>> chunk = writes.subList(start, Math.min(start + chunkSize, writes.size()));
+            chunks.add(target.bulkWrite(chunk, options)
+                    .map(result -> withOffset(result, start))
+                    .onErrorResumeNext(e -> Observable.<BulkWriteResult>error(e instanceof MongoBulkWriteException
+                            ? withOffset((MongoBulkWriteException) e, start) : e)));
+        }
+        // unordered chunks run to completion even if some of them fail
+        Observable<BulkWriteResult> results = ordered
+                ? Observable.concat(Observable.from(chunks))
+                : Observable.mergeDelayError(Observable.from(chunks));
+        return Observable.defer(() -> {
+            List<BulkWriteResult> completed = new ArrayList<BulkWriteResult>();
+            return results
+                    .doOnNext(completed::add)
+                    .ignoreElements()
+                    .concatWith(Observable.defer(() -> Observable.just(combine(completed))))
+                    .onErrorResumeNext(e -> Observable.<BulkWriteResult>error(combineErrors(completed, e)));
+        });
+    }
+
+    private static BulkWriteResult withOffset(BulkWriteResult result, int offset) {
+        if (offset == 0 || !result.wasAcknowledged() || result.getUpserts().isEmpty()) {
+            return result;
+        }
+        List<BulkWriteUpsert> upserts = new ArrayList<BulkWriteUpsert>(result.getUpserts().size());
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            upserts.add(new BulkWriteUpsert(upsert.getIndex() + offset, upsert.getId()));
+        }
+        return BulkWriteResult.acknowledged(result.getInsertedCount(), result.getMatchedCount(),
+                result.getDeletedCount(), result.isModifiedCountAvailable() ? result.getModifiedCount() : null, upserts);
+    }
+
+    private static MongoBulkWriteException withOffset(MongoBulkWriteException e, int offset) {
+        if (offset == 0) {
+            return e;
+        }
+        List<BulkWriteError> errors = new ArrayList<BulkWriteError>(e.getWriteErrors().size());
+        for (BulkWriteError error : e.getWriteErrors()) {
+            errors.add(new BulkWriteError(error.getCode(), error.getMessage(), error.getDetails(), error.getIndex() + offset));
+        }
+        return new MongoBulkWriteException(withOffset(e.getWriteResult(), offset), errors, e.getWriteConcernError(),
+                e.getServerAddress());
+    }
+
+    private static BulkWriteResult combine(List<BulkWriteResult> results) {
+        BulkWriteResult combined = results.get(0);
+        for (int i = 1; i < results.size(); i++) {
+            combined = combine(combined, results.get(i));
+        }
+        return combined;
+    }
+
+    private static BulkWriteResult combine(BulkWriteResult first, BulkWriteResult second) {
+        if (!first.wasAcknowledged() || !second.wasAcknowledged()) {
+            return BulkWriteResult.unacknowledged();
+        }
+        List<BulkWriteUpsert> upserts = new ArrayList<BulkWriteUpsert>(first.getUpserts());
+        upserts.addAll(second.getUpserts());
+        upserts.sort(Comparator.comparingInt(BulkWriteUpsert::getIndex));
+        Integer modified = first.isModifiedCountAvailable() && second.isModifiedCountAvailable()
+                ? first.getModifiedCount() + second.getModifiedCount() : null;
+        return BulkWriteResult.acknowledged(first.getInsertedCount() + second.getInsertedCount(),
+                first.getMatchedCount() + second.getMatchedCount(),
+                first.getDeletedCount() + second.getDeletedCount(),
+                modified, upserts);
+    }
+
+    /**
+     * Combine the write errors of the failed chunks and the results of all chunks into one exception. Errors other
+     * than write errors leave the outcome of their chunk unknown and are raised as they are.
+     */
+    private static Throwable combineErrors(List<BulkWriteResult> completed, Throwable e) {
+        List<Throwable> errors = e instanceof CompositeException
+                ? ((CompositeException) e).getExceptions() : Collections.singletonList(e);
+        if (errors.size() == 1 && completed.isEmpty()) {
+            return e;
+        }
+        for (Throwable error : errors) {
+            if (!(error instanceof MongoBulkWriteException)) {
+                for (Throwable other : errors) {
+                    if (other != error) {
+                        error.addSuppressed(other);
+                    }
+                }
+                return error;
+            }
+        }
+        List<BulkWriteResult> results = new ArrayList<BulkWriteResult>(completed);
+        List<BulkWriteError> writeErrors = new ArrayList<BulkWriteError>();
+        WriteConcernError writeConcernError = null;
+        for (Throwable error : errors) {
+            MongoBulkWriteException failure = (MongoBulkWriteException) error;
+            results.add(failure.getWriteResult());
+            writeErrors.addAll(failure.getWriteErrors());
+            if (writeConcernError == null) {
+                writeConcernError = failure.getWriteConcernError();
+            }
+        }
+        writeErrors.sort(Comparator.comparingInt(BulkWriteError::getIndex));
+        return new MongoBulkWriteException(combine(results), writeErrors, writeConcernError,
+                ((MongoBulkWriteException) errors.get(0)).getServerAddress());
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@code AsyncMongoDeleteClause} deletes the documents matching a predicate.
+ * <p>
+ * Clauses can also be collected into an {@link AsyncMongoBulkWrite}.
+ */
+public class AsyncMongoDeleteClause {
+
+    @Nullable
+    private final MongoDatabase database;
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+
+    private final BooleanBuilder where = new BooleanBuilder();
+
+    private boolean single;
+
+    protected AsyncMongoDeleteClause(@Nullable MongoDatabase database) {
+        this.database = database;
+    }
+
+    public static AsyncMongoDeleteClause forDatabase(MongoDatabase database) {
+        return new AsyncMongoDeleteClause(database);
+    }
+
+    public AsyncMongoDeleteClause where(Predicate... e) {
+        for (Predicate predicate : e) {
+            where.and(predicate);
+        }
+        return this;
+    }
+
+    /**
+     * Delete only the first matching document instead of all of them
+     *
+     * @return the current object
+     */
+    public AsyncMongoDeleteClause single() {
+        this.single = true;
+        return this;
+    }
+
+    /**
+     * Delete the matching documents of the given collection
+     *
+     * @param collection collection name
+     * @return delete result
+     */
+    public Observable<DeleteResult> executeOn(String collection) {
+        if (database == null) {
+            throw new IllegalStateException("Clause of a bulk write can't be executed on its own");
+        }
+        return single
+                ? getCollection(collection).deleteOne(toFilter())
+                : getCollection(collection).deleteMany(toFilter());
+    }
+
+    /**
+     * Create the bulk write model of this clause
+     *
+     * @return write model
+     */
+    public <T> WriteModel<T> toWriteModel() {
+        return single ? new DeleteOneModel<T>(toFilter()) : new DeleteManyModel<T>(toFilter());
+    }
+
+    private MongoCollection<Document> getCollection(String collection) {
+        return database.getCollection(collection)
+                .withCodecRegistry(GeneratedCodecProvider.withGeneratedCodecs(database.getCodecRegistry()));
+    }
+
+    private Bson toFilter() {
+        Predicate predicate = where.getValue();
+        return predicate == null ? new BsonDocument() : (Bson) serializer.handle(predicate);
+    }
+
+}
@@ -1,29 +1,113 @@
 package com.egopulse.querydsl.mongodb;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.mongodb.CursorType;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.rx.client.FindObservable;
+import com.mongodb.rx.client.MongoCollection;
 import com.mongodb.rx.client.MongoDatabase;
 import com.mysema.commons.lang.CloseableIterator;
 import com.querydsl.core.DefaultQueryMetadata;
+import com.querydsl.core.JoinExpression;
 import com.querydsl.core.QueryMetadata;
 import com.querydsl.core.QueryModifiers;
+import com.querydsl.core.QueryResults;
 import com.querydsl.core.SimpleQuery;
 import com.querydsl.core.support.QueryMixin;
 import com.querydsl.core.types.*;
+import com.querydsl.core.types.dsl.CollectionPathBase;
 import org.bson.BsonDocument;
-import org.bson.Document;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
 import rx.Observable;
+import rx.functions.Func1;
 
 import javax.annotation.Nullable;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class AsyncMongoQuery<K, Q extends AsyncMongoQuery<K, Q>> implements SimpleQuery<Q>, Fetchable<K> {
 
+    private static final String ID_FIELD = "_id";
+
+    private static final String COUNT_FIELD = "count";
+
+    private static final String VALUE_FIELD = "value";
+
+    private static final int DISTINCT_TOO_BIG = 17217;
+
+    private static final int UNRECOGNIZED_STAGE = 16436;
+
+    public static final int DEFAULT_MAX_JOIN_IDS = 10000;
+
+    private static final long TAIL_RESUME_MILLIS = 100;
+
+    private static final long WATCH_BATCH_MILLIS = 20;
+
+    private static final int WATCH_BATCH_SIZE = 256;
+
+    private static final int SAMPLES_PER_PARTITION = 10;
+
+    private static final int DEFAULT_MERGE_PREFETCH = 128;
+
+    private static final String MORPHIA_ENTITY = "org.mongodb.morphia.annotations.Entity";
+
     private final QueryMixin<Q> queryMixin;
     private final MongodbSerializer serializer;
     private final MongoDatabase database;
+    private final Class<K> entityClass;
+    private final CodecRegistry codecRegistry;
+
+    private int batchSize;
+
+    private boolean directFilters;
+
+    private int maxJoinIds = DEFAULT_MAX_JOIN_IDS;
+
+    @Nullable
+    private JoinIdCache joinIdCache;
+
+    private boolean lookupJoins;
+
+    @Nullable
+    private QueryPlanCache planCache;
 
-    protected AsyncMongoQuery(MongoDatabase database) {
+    @Nullable
+    private SingleFlight singleFlight;
+
+    @Nullable
+    private ResultCache resultCache;
+
+    private QueryMetrics metrics = QueryMetrics.NONE;
+
+    protected AsyncMongoQuery(MongoDatabase database, Class<K> entityClass) {
         this.database = database;
+        this.entityClass = entityClass;
+        this.codecRegistry = GeneratedCodecProvider.withGeneratedCodecs(database.getCodecRegistry());
         @SuppressWarnings("unchecked")
         Q query = (Q) this;
         this.queryMixin = new QueryMixin<Q>(query, new DefaultQueryMetadata(), false);
@@ -73,6 +157,153 @@ public abstract class AsyncMongoQuery<K, Q extends AsyncMongoQuery<K, Q>> implem
         return queryMixin.set(param, value);
     }
 
+    /**
+     * Set the number of documents requested from the cursor at a time while streaming
+     *
+     * @param batchSize batch size, or 0 to let the subscriber's demand decide
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q batchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize must not be negative, was " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return (Q) this;
+    }
+
+    /**
+     * Serialize this query through the given plan cache, which is usually shared between queries
+     *
+     * @param planCache plan cache
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q planCache(QueryPlanCache planCache) {
+        this.planCache = planCache;
+        return (Q) this;
+    }
+
+    /**
+     * Let identical concurrent fetches share one server round trip through the given {@link SingleFlight},
+     * which is usually shared between queries. A flight requests all results of the query and buffers them for
+     * the subscribers attaching to it, regardless of their demand, so it's not used for streams with a
+     * {@link #batchSize(int)}. Not used for {@code $lookup} joins either.
+     *
+     * @param singleFlight in-flight queries
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q singleFlight(SingleFlight singleFlight) {
+        this.singleFlight = singleFlight;
+        return (Q) this;
+    }
+
+    /**
+     * Serve fetches from the given {@link ResultCache}, which is usually shared between queries. Only queries on
+     * the collections cached by it are served from memory. Not used for {@code $lookup} joins.
+     *
+     * @param resultCache result cache
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q resultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        return (Q) this;
+    }
+
+    /**
+     * Record the serialization time, time to first document, total time, documents and decoded bytes of each
+     * query into the given metrics. Finds are recorded as {@code find} or {@code first}, the other fetches as
+     * {@code count}, {@code exists}, {@code page}, {@code distinct} and {@code fanOut}, queries with joins run
+     * on the server as {@code lookup} or {@code lookupFirst}. Queries served by a result cache or attached to a
+     * query in flight aren't recorded again.
+     *
+     * @param metrics query metrics
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q metrics(QueryMetrics metrics) {
+        this.metrics = metrics;
+        return (Q) this;
+    }
+
+    /**
+     * Write the filter straight into the driver's {@link org.bson.BsonWriter} instead of building driver filters,
+     * see {@link DirectBsonFilter}. Not used for queries serialized through a plan cache.
+     *
+     * @param directFilters true to write filters directly
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q directFilters(boolean directFilters) {
+        this.directFilters = directFilters;
+        return (Q) this;
+    }
+
+    /**
+     * Set the maximum number of ids a join level may resolve to. Joins resolving to more ids fail
+     * with an {@link IllegalStateException}.
+     *
+     * @param maxJoinIds maximum number of ids per join level
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q maxJoinIds(int maxJoinIds) {
+        if (maxJoinIds <= 0) {
+            throw new IllegalArgumentException("maxJoinIds must be positive, was " + maxJoinIds);
+        }
+        this.maxJoinIds = maxJoinIds;
+        return (Q) this;
+    }
+
+    /**
+     * Reuse the ids join conditions resolved to through the given cache, which is usually shared between queries
+     *
+     * @param joinIdCache join id cache
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q joinIdCache(JoinIdCache joinIdCache) {
+        this.joinIdCache = joinIdCache;
+        return (Q) this;
+    }
+
+    /**
+     * Resolve joins on the server with a single {@code $lookup} aggregation instead of one query per join level,
+     * see {@link LookupPipeline} for the requirements. Keyset pages still resolve joins on the client.
+     *
+     * @param lookupJoins true to resolve joins with {@code $lookup}
+     * @return the current object
+     */
+    @SuppressWarnings("unchecked")
+    public Q lookupJoins(boolean lookupJoins) {
+        this.lookupJoins = lookupJoins;
+        return (Q) this;
+    }
+
+    /**
+     * Define a join
+     *
+     * @param ref reference
+     * @param target join target
+     * @return join builder
+     */
+    public <T> JoinBuilder<Q, K, T> join(Path<T> ref, Path<T> target) {
+        return new JoinBuilder<Q, K, T>(queryMixin, ref, target);
+    }
+
+    /**
+     * Define a join
+     *
+     * @param ref reference
+     * @param target join target
+     * @return join builder
+     */
+    public <T> JoinBuilder<Q, K, T> join(CollectionPathBase<?, T, ?> ref, Path<T> target) {
+        return new JoinBuilder<Q, K, T>(queryMixin, ref, target);
+    }
+
     /**
      * Iterate with the specific fields
      *
@@ -97,22 +328,34 @@ public abstract class AsyncMongoQuery<K, Q extends AsyncMongoQuery<K, Q>> implem
 
     @Override
     public Observable<List<K>> fetchFrom(String collection) {
+        return streamFrom(collection).toList();
+    }
+
+    /**
+     * Stream with the specific fields
+     *
+     * @param paths fields to return
+     * @return results
+     */
+    public Observable<K> streamFrom(String collection, Path<?>... paths) {
+        queryMixin.setProjection(paths);
+        return streamFrom(collection);
+    }
+
+    @Override
+    public Observable<K> streamFrom(String collection) {
         QueryMetadata metadata = queryMixin.getMetadata();
+        if (isLookup(metadata)) {
+            long start = System.nanoTime();
+            List<Bson> pipeline = createPipeline(metadata).find();
+            return batched(measured(collection, entityClass, "lookup", metadata.getWhere(), metadata.getOrderBy(),
+                    null, System.nanoTime() - start, documents -> documents.aggregate(pipeline).toObservable()));
+        }
+        return withFilter(filter -> batched(find(collection, filter, false)));
+    }
 
-        Predicate filterExpression = createFilter(metadata);
-        Bson filterCondition = filterExpression == null ? new BsonDocument() : (Bson) serializer.handle(filterExpression);
-        Bson projection = createProjection(metadata.getProjection());
-        Bson sort = createSort(metadata.getOrderBy());
-
-        return this.database.getCollection(collection)
-                .find(filterCondition)
-                .projection(projection)
-                .sort(sort)
-                // TODO conversion here
-                .toObservable().map(doc -> {
-                    System.out.println(doc.toJson());
-                    return null;
-                });
+    private Observable<K> batched(Observable<K> results) {
+        return batchSize > 0 ? results.lift(new BatchedRequests<K>(batchSize)) : results;
     }
 
     public Observable<K> fetchOneFrom(String collection, Path<?>... paths) {
@@ -122,57 +365,767 @@ public abstract class AsyncMongoQuery<K, Q extends AsyncMongoQuery<K, Q>> implem
 
     @Override
     public Observable<K> fetchOneFrom(String collection) {
-        return this.database.getCollection(collection).find(new Document()).first().map(d -> null);
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (isLookup(metadata)) {
+            long start = System.nanoTime();
+            List<Bson> pipeline = createPipeline(metadata).find();
+            pipeline.add(Aggregates.limit(1));
+            return measured(collection, entityClass, "lookupFirst", metadata.getWhere(), metadata.getOrderBy(),
+                    null, System.nanoTime() - start, documents -> documents.aggregate(pipeline).toObservable());
+        }
+        return withFilter(filter -> find(collection, filter, true));
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Fetch the current page and the total number of matching documents, running both queries concurrently
+     *
+     * @param collection collection name
+     * @return results
+     */
+    @Override
+    public Observable<QueryResults<K>> fetchResults(String collection) {
+        QueryModifiers modifiers = queryMixin.getMetadata().getModifiers();
+        return Observable.zip(fetchCount(collection), fetchFrom(collection),
+                (total, results) -> total > 0 ? new QueryResults<K>(results, modifiers, total) : QueryResults.<K>emptyResults());
+    }
+
+    /**
+     * Count the matching documents on the server
+     *
+     * @param collection collection name
+     * @return number of matching documents
+     */
+    @Override
+    public Observable<Long> fetchCount(String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (isLookup(metadata)) {
+            long start = System.nanoTime();
+            List<Bson> pipeline = createPipeline(metadata).filter();
+            pipeline.add(Aggregates.group(null, Accumulators.sum(COUNT_FIELD, 1)));
+            return measured(collection, BsonDocument.class, "count", metadata.getWhere(), metadata.getOrderBy(),
+                    null, System.nanoTime() - start, documents -> documents
+                            .aggregate(pipeline)
+                            .toObservable()
+                            .map(document -> document.getNumber(COUNT_FIELD).longValue())
+                            .defaultIfEmpty(0L));
+        }
+        return withFilter(filter -> {
+            long start = System.nanoTime();
+            SerializedQuery query = serialize(filter, metadata.getOrderBy(), metadata);
+            return measured(collection, BsonDocument.class, "count", filter, metadata.getOrderBy(), query,
+                    System.nanoTime() - start, documents -> documents.count(query.getFilter()));
+        }).defaultIfEmpty(0L);
+    }
+
+    /**
+     * Check whether any document matches, fetching at most the id of one document
+     *
+     * @param collection collection name
+     * @return true, if a matching document exists
+     */
+    @Override
+    public Observable<Boolean> exists(String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (isLookup(metadata)) {
+            long start = System.nanoTime();
+            List<Bson> pipeline = createPipeline(metadata).filter();
+            pipeline.add(Aggregates.limit(1));
+            pipeline.add(Aggregates.project(Projections.include(ID_FIELD)));
+            return measured(collection, BsonDocument.class, "exists", metadata.getWhere(), metadata.getOrderBy(),
+                    null, System.nanoTime() - start, documents -> documents.aggregate(pipeline).toObservable())
+                    .isEmpty()
+                    .map(empty -> !empty);
+        }
+        return withFilter(filter -> {
+            long start = System.nanoTime();
+            SerializedQuery query = serialize(filter, metadata.getOrderBy(), metadata);
+            return measured(collection, BsonDocument.class, "exists", filter, metadata.getOrderBy(), query,
+                    System.nanoTime() - start, documents -> documents
+                            .find(query.getFilter())
+                            .projection(Projections.include(ID_FIELD))
+                            .limit(1)
+                            .first())
+                    .isEmpty()
+                    .map(empty -> !empty);
+        }).defaultIfEmpty(false);
+    }
+
+    /**
+     * Fetch the distinct values of the given path among the matching documents with the distinct command.
+     * If the values exceed the size limit of the command result, they are fetched with a {@code $group}
+     * aggregation instead.
+     *
+     * @param collection collection name
+     * @param path path of the values
+     * @return distinct values
+     */
+    public <T> Observable<T> fetchDistinct(String collection, Path<T> path) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        String key = (String) serializer.handle(path);
+        FieldType type = FieldType.of(path.getType());
+        List<OrderSpecifier<?>> orderBy = Collections.emptyList();
+        return withFilter(filter -> {
+            long start = System.nanoTime();
+            SerializedQuery query = serialize(filter, orderBy, metadata);
+            return measured(collection, BsonDocument.class, "distinct", filter, orderBy, query,
+                    System.nanoTime() - start, documents -> documents
+                            .distinct(key, BsonValue.class)
+                            .filter(query.getFilter())
+                            .toObservable()
+                            .onErrorResumeNext(e -> isDistinctTooBig(e)
+                                    ? documents.aggregate(Arrays.asList(
+                                            Aggregates.match(query.getFilter()),
+                                            Aggregates.unwind("$" + key),
+                                            Aggregates.group("$" + key)))
+                                        .toObservable()
+                                        .map(document -> document.get(ID_FIELD))
+                                    : Observable.<BsonValue>error(e)));
+        }).map(value -> path.getType().cast(decodeValue(value, type)));
+    }
+
+    private static boolean isDistinctTooBig(Throwable e) {
+        return e instanceof MongoCommandException && (((MongoCommandException) e).getErrorCode() == DISTINCT_TOO_BIG
+                || String.valueOf(e.getMessage()).contains("distinct too big"));
+    }
+
+    private Object decodeValue(BsonValue value, FieldType type) {
+        BsonDocumentReader reader = new BsonDocumentReader(new BsonDocument(VALUE_FIELD, value));
+        reader.readStartDocument();
+        reader.readBsonType();
+        reader.readName();
+        return type.decode(reader, codecRegistry, DecoderContext.builder().build());
+    }
+
+    /**
+     * Fetch a page with the specific fields, which must include the sort keys
+     *
+     * @param collection collection name
+     * @param pageSize maximum number of results in the page
+     * @param continuation continuation of the previous page, or null for the first page
+     * @param paths fields to return
+     * @return page
+     */
+    public Observable<KeysetPage<K>> fetchPage(String collection, int pageSize, @Nullable String continuation,
+                                               Path<?>... paths) {
+        queryMixin.setProjection(paths);
+        return fetchPage(collection, pageSize, continuation);
+    }
+
+    /**
+     * Fetch a page of results after the row the given continuation was created from, seeking on the sort keys
+     * instead of skipping rows. The order is made total by sorting on {@code _id} last.
+     *
+     * @param collection collection name
+     * @param pageSize maximum number of results in the page
+     * @param continuation continuation of the previous page, or null for the first page
+     * @return page
+     */
+    public Observable<KeysetPage<K>> fetchPage(String collection, int pageSize, @Nullable String continuation) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+        }
+        QueryMetadata metadata = queryMixin.getMetadata();
+        Keyset keyset = Keyset.of(metadata.getOrderBy(), serializer);
+        // the continuation is created from the sort keys of the last row
+        requireSortKeys(keyset.getOrderBy(), createProjection(metadata.getProjection()));
+        Predicate seek = continuation != null ? keyset.seek(continuation) : null;
+        Codec<K> codec = codecRegistry.get(entityClass);
+        return withFilter(filter -> {
+            Predicate pageFilter = ExpressionUtils.allOf(filter, seek);
+            long start = System.nanoTime();
+            SerializedQuery query = serialize(pageFilter, keyset.getOrderBy(), metadata);
+            return measured(collection, BsonDocument.class, "page", pageFilter, keyset.getOrderBy(), query,
+                    System.nanoTime() - start, documents -> documents
+                            .find(query.getFilter())
+                            .projection(query.getProjection())
+                            .sort(query.getSort())
+                            .limit(pageSize + 1)
+                            .toObservable())
+                    .toList()
+                    .map(documents -> {
+                        boolean hasNext = documents.size() > pageSize;
+                        List<BsonDocument> page = hasNext ? documents.subList(0, pageSize) : documents;
+                        List<K> results = new ArrayList<K>(page.size());
+                        for (BsonDocument document : page) {
+                            results.add(codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build()));
+                        }
+                        return new KeysetPage<K>(results, hasNext ? keyset.continuation(page.get(pageSize - 1)) : null);
+                    });
+        }).defaultIfEmpty(new KeysetPage<K>(Collections.<K>emptyList(), null));
+    }
+
+    /**
+     * Serialize this query once for repeated execution with different parameter bindings
+     *
+     * @param collection collection name
+     * @return prepared query
+     */
+    public PreparedMongoQuery<K> prepare(String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (!metadata.getJoins().isEmpty()) {
+            throw new UnsupportedOperationException("Queries with joins can't be prepared");
+        }
+        Predicate filter = metadata.getWhere();
+        QueryShape shape = QueryShape.of(filter, metadata.getOrderBy(), metadata.getProjection());
+        QueryPlan plan = shape != null ? QueryPlan.compile(shape, filter, metadata.getOrderBy(), metadata.getProjection()) : null;
+        if (plan == null) {
+            throw new UnsupportedOperationException("Query can't be prepared: " + filter);
+        }
+        return new PreparedMongoQuery<K>(getCollection(collection), plan, shape.getValues(),
+                new HashMap<ParamExpression<?>, Object>(metadata.getParams()), metadata.getModifiers(), batchSize);
+    }
+
+    /**
+     * Stream the matching documents of the given collection of every given database. The query is serialized once
+     * and sent to all databases concurrently. Ordered results are merged in order, reading at most
+     * {@link #batchSize(int)} documents ahead per database, so the sort keys must be included in the projection,
+     * an {@link IllegalArgumentException} is thrown otherwise.
+     * Each database returns at most offset + limit documents, the offset and limit are applied to the merged
+     * results.
+     *
+     * @param databases databases to query
+     * @param collection collection name
+     * @return merged results
+     */
+    public Observable<K> fanOutFrom(List<MongoDatabase> databases, String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (!metadata.getJoins().isEmpty()) {
+            throw new UnsupportedOperationException("Queries with joins can't be fanned out");
+        }
+        long start = System.nanoTime();
+        SerializedQuery query = serialize(metadata.getWhere(), metadata.getOrderBy(), metadata);
+        Comparator<BsonDocument> comparator = metadata.getOrderBy().isEmpty() ? null
+                : createComparator(metadata.getOrderBy(), query.getProjection());
+        Long limit = metadata.getModifiers().getLimit();
+        Long offset = metadata.getModifiers().getOffset();
+        QueryModifiers perDatabase = new QueryModifiers(limit != null && offset != null ? limit + offset : limit, null);
+        Codec<K> codec = codecRegistry.get(entityClass);
+        return measured(collection, BsonDocument.class, "fanOut", metadata.getWhere(), metadata.getOrderBy(), query,
+                System.nanoTime() - start, documents -> {
+                    List<Observable<BsonDocument>> results = new ArrayList<Observable<BsonDocument>>(databases.size());
+                    for (MongoDatabase target : databases) {
+                        FindObservable<BsonDocument> find = target.getCollection(collection, BsonDocument.class)
+                                .withCodecRegistry(documents.getCodecRegistry())
+                                .find(query.getFilter())
+                                .projection(query.getProjection())
+                                .sort(query.getSort());
+                        results.add(applyModifiers(find, perDatabase).toObservable());
+                    }
+                    Observable<BsonDocument> merged = comparator == null
+                            ? Observable.merge(results)
+                            : Observable.create(new SortedMerge<BsonDocument>(results, comparator,
+                                    batchSize > 0 ? batchSize : DEFAULT_MERGE_PREFETCH));
+                    if (offset != null) {
+                        merged = merged.skip(offset.intValue());
+                    }
+                    return limit != null ? merged.take(limit.intValue()) : merged;
+                })
+                .map(document -> codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build()));
+    }
+
+    private Comparator<BsonDocument> createComparator(List<OrderSpecifier<?>> orderBy, @Nullable Bson projection) {
+        requireSortKeys(orderBy, projection);
+        Comparator<BsonDocument> comparator = null;
+        for (OrderSpecifier<?> order : orderBy) {
+            String key = (String) serializer.handle(order.getTarget());
+            Comparator<BsonDocument> byKey = (first, second) -> BsonValueComparator.INSTANCE.compare(
+                    Keyset.getValue(first, key), Keyset.getValue(second, key));
+            if (!order.isAscending()) {
+                byKey = byKey.reversed();
+            }
+            comparator = comparator == null ? byKey : comparator.thenComparing(byKey);
+        }
+        return comparator;
+    }
+
+    private void requireSortKeys(List<OrderSpecifier<?>> orderBy, @Nullable Bson projection) {
+        if (projection == null) {
+            return;
+        }
+        BsonDocument included = projection.toBsonDocument(BsonDocument.class, codecRegistry);
+        for (OrderSpecifier<?> order : orderBy) {
+            String key = (String) serializer.handle(order.getTarget());
+            if (!isIncluded(included, key)) {
+                throw new IllegalArgumentException("Sort key " + key + " is missing from the projection");
+            }
+        }
+    }
+
+    private static boolean isIncluded(BsonDocument projection, String key) {
+        if (key.equals(ID_FIELD)) {
+            // the serialized projections only include fields, and _id is returned unless excluded
+            return true;
+        }
+        for (String field = key; ; field = field.substring(0, field.lastIndexOf('.'))) {
+            if (projection.containsKey(field)) {
+                return true;
+            } else if (field.indexOf('.') < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stream the matching documents with concurrent cursors over ranges of {@code _id}
+     *
+     * @param collection collection name
+     * @param partitions maximum number of concurrent cursors
+     * @return unordered results
+     * @see #parallelScan(String, int, Path)
+     */
+    public Observable<K> parallelScan(String collection, int partitions) {
+        return parallelScan(collection, partitions, ExpressionUtils.path(Object.class, ID_FIELD));
+    }
+
+    /**
+     * Stream the matching documents with concurrent cursors over ranges of the given path. The range boundaries
+     * are picked from a {@code $sample} of the collection, so the values of the path should be of one type and
+     * the path should be indexed. Servers older than 3.2 have no {@code $sample}, the boundaries are then read by
+     * skipping through the collection in the order of the path. Results of the cursors are merged in arrival order, so the query can't be
+     * ordered or restricted.
+     *
+     * @param collection collection name
+     * @param partitions maximum number of concurrent cursors
+     * @param rangePath path to split the collection on
+     * @return unordered results
+     */
+    public Observable<K> parallelScan(String collection, int partitions, Path<?> rangePath) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive, was " + partitions);
+        }
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (!metadata.getOrderBy().isEmpty() || metadata.getModifiers().isRestricting()) {
+            throw new UnsupportedOperationException("Ordered or restricted queries can't be scanned in parallel");
+        }
+        String key = (String) serializer.handle(rangePath);
+        return withFilter(filter -> sampleBoundaries(collection, key, partitions).flatMap(boundaries -> {
+            List<Observable<K>> scans = new ArrayList<Observable<K>>(boundaries.size() + 1);
+            for (int i = 0; i <= boundaries.size(); i++) {
+                BsonValue lower = i > 0 ? boundaries.get(i - 1) : null;
+                BsonValue upper = i < boundaries.size() ? boundaries.get(i) : null;
+                Predicate range = ExpressionUtils.allOf(createRange(rangePath, lower, upper), filter);
+                scans.add(batched(find(collection, range, false)));
+            }
+            return Observable.merge(scans);
+        }));
+    }
+
+    private Observable<List<BsonValue>> sampleBoundaries(String collection, String key, int partitions) {
+        if (partitions == 1) {
+            return Observable.just(Collections.<BsonValue>emptyList());
+        }
+        List<Bson> pipeline = Arrays.asList(
+                Aggregates.sample(partitions * SAMPLES_PER_PARTITION),
+                Aggregates.match(Filters.exists(key)),
+                Aggregates.project(Projections.include(key)),
+                Aggregates.sort(Sorts.ascending(key)));
+        return getCollection(collection).withDocumentClass(BsonDocument.class).aggregate(pipeline).toObservable()
+                .toList()
+                .onErrorResumeNext(e -> isUnrecognizedStage(e)
+                        ? skipSamples(collection, key, partitions) : Observable.<List<BsonDocument>>error(e))
+                .map(samples -> {
+                    List<BsonValue> boundaries = new ArrayList<BsonValue>(partitions - 1);
+                    for (int i = 1; i < partitions && !samples.isEmpty(); i++) {
+                        BsonValue value = Keyset.getValue(samples.get(i * samples.size() / partitions), key);
+                        if (value != null && !value.isNull()
+                                && (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(value))) {
+                            boundaries.add(value);
+                        }
+                    }
+                    return boundaries;
+                });
+    }
+
+    /**
+     * Read the values at the start of each partition by skipping through the collection in key order
+     */
+    private Observable<List<BsonDocument>> skipSamples(String collection, String key, int partitions) {
+        MongoCollection<BsonDocument> documents = getCollection(collection).withDocumentClass(BsonDocument.class);
+        return documents.count(Filters.exists(key))
+                .flatMap(count -> Observable.range(0, partitions)
+                        .concatMap(i -> documents.find(Filters.exists(key))
+                                .projection(Projections.include(key))
+                                .sort(Sorts.ascending(key))
+                                .skip((int) (i * count / partitions))
+                                .first()))
+                .toList();
+    }
+
+    private static boolean isUnrecognizedStage(Throwable e) {
+        return e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() == UNRECOGNIZED_STAGE;
+    }
+
+    /**
+     * The first range also matches documents without a value.
+     */
     @Nullable
-    protected Predicate createJoinFilter(QueryMetadata metadata) {
-//        Multimap<Expression<?>, Predicate> predicates = HashMultimap.create();
-//        List<JoinExpression> joins = metadata.getJoins();
-//        for (int i = joins.size() - 1; i >= 0; i--) {
-//            JoinExpression join = joins.get(i);
-//            Path<?> source = (Path) ((Operation<?>) join.getTarget()).getArg(0);
-//            Path<?> target = (Path) ((Operation<?>) join.getTarget()).getArg(1);
-//            Collection<Predicate> extraFilters = predicates.get(target.getRoot());
-//            Predicate filter = ExpressionUtils.allOf(join.getCondition(), allOf(extraFilters));
-//            List<? extends Object> ids = getIds(target.getType(), filter);
-//            if (ids.isEmpty()) {
-//                throw new NoResults();
-//            }
-//            Path<?> path = ExpressionUtils.path(String.class, source, "$id");
-//            predicates.put(source.getRoot(), ExpressionUtils.in((Path<Object>) path, ids));
-//        }
-//        Path<?> source = (Path) ((Operation) joins.get(0).getTarget()).getArg(0);
-//        return allOf(predicates.get(source.getRoot()));
-        return null;
+    private static Predicate createRange(Path<?> path, @Nullable BsonValue lower, @Nullable BsonValue upper) {
+        if (upper == null) {
+            return lower == null ? null : ExpressionUtils.predicate(Ops.GOE, path, ConstantImpl.create(lower));
+        }
+        Predicate below = ExpressionUtils.predicate(Ops.LT, path, ConstantImpl.create(upper));
+        if (lower == null) {
+            return ExpressionUtils.or(below, ExpressionUtils.predicate(Ops.EQ, path, ConstantImpl.create(BsonNull.VALUE)));
+        }
+        return ExpressionUtils.and(ExpressionUtils.predicate(Ops.GOE, path, ConstantImpl.create(lower)), below);
     }
 
-    private Bson createSort(List<OrderSpecifier<?>> orderBys) {
-        return serializer.toSort(orderBys);
+    /**
+     * Stream the matching documents of a capped collection with a tailable cursor, emitting documents inserted
+     * after subscription as well. The stream doesn't complete, when the cursor dies or is killed a new one is
+     * opened after the last emitted {@code _id}. Documents are emitted in insertion order, so the query can't be
+     * ordered.
+     *
+     * @param collection capped collection name
+     * @return unbounded results
+     */
+    public Observable<K> tailFrom(String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (!metadata.getJoins().isEmpty() || !metadata.getOrderBy().isEmpty()) {
+            throw new UnsupportedOperationException("Queries with joins or order can't be tailed");
+        }
+        SerializedQuery query = serialize(metadata.getWhere(), Collections.<OrderSpecifier<?>>emptyList(), metadata);
+        Codec<K> codec = codecRegistry.get(entityClass);
+        return batched(Observable.defer(() -> {
+            AtomicReference<BsonValue> last = new AtomicReference<BsonValue>();
+            return Observable.defer(() -> getCollection(collection)
+                    .withDocumentClass(BsonDocument.class)
+                    .find(last.get() == null ? query.getFilter() : Filters.and(query.getFilter(), Filters.gt(ID_FIELD, last.get())))
+                    .projection(query.getProjection())
+                    .cursorType(CursorType.TailableAwait)
+                    .noCursorTimeout(true)
+                    .toObservable())
+                    .doOnNext(document -> last.set(document.get(ID_FIELD)))
+                    .retryWhen(errors -> errors.flatMap(e -> e instanceof MongoCursorNotFoundException
+                            ? Observable.timer(TAIL_RESUME_MILLIS, TimeUnit.MILLISECONDS) : Observable.error(e)))
+                    .repeatWhen(ends -> ends.delay(TAIL_RESUME_MILLIS, TimeUnit.MILLISECONDS));
+        }).map(document -> codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build())));
     }
 
-    private Bson createProjection(Expression<?> projection) {
-        if (projection instanceof FactoryExpression) {
-            Document obj = new Document();
-            for (Object expr : ((FactoryExpression) projection).getArgs()) {
-                if (expr instanceof Expression) {
-                    obj.put((String) serializer.handle((Expression) expr), 1);
+    /**
+     * Watch the changes of the documents matching this query. Change streams need a newer server driver, so the
+     * oplog of a replica set member is tailed from the given {@code local} database instead, see {@link OplogTail}.
+     * <p>
+     * The ids of the documents matching at subscription are read once and kept, together with the ids of
+     * inserted and updated matching documents, for the lifetime of the subscription, so memory grows with the
+     * number of matching documents and a watched query should be selective. Inserts are matched on the server.
+     * The oplog entries are processed in batches of up to {@value #WATCH_BATCH_SIZE} entries or
+     * {@value #WATCH_BATCH_MILLIS} ms, the documents updated in a batch are read again with one query and emitted
+     * as deletes if they matched before but no longer do. Updates and deletes of documents that never matched
+     * are not emitted.
+     *
+     * @param local the {@code local} database of a replica set member
+     * @param collection collection name
+     * @return changes after subscription
+     */
+    public Observable<ChangeEvent<K>> watch(MongoDatabase local, String collection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (!metadata.getJoins().isEmpty()) {
+            throw new UnsupportedOperationException("Queries with joins can't be watched");
+        }
+        BsonDocument filter = metadata.getWhere() == null ? new BsonDocument()
+                : ((Bson) getSerializer(metadata).handle(metadata.getWhere())).toBsonDocument(BsonDocument.class, codecRegistry);
+        OplogTail oplog = new OplogTail(local, database.getName() + "." + collection, filter);
+        MongoCollection<BsonDocument> documents = getCollection(collection).withDocumentClass(BsonDocument.class);
+        Codec<K> codec = codecRegistry.get(entityClass);
+        // read the matching ids after the start of the oplog, so that no change in between is lost
+        return oplog.latestTimestamp().flatMap(start -> documents
+                .find(filter)
+                .projection(Projections.include(ID_FIELD))
+                .toObservable()
+                .map(document -> document.get(ID_FIELD))
+                // batches are processed one at a time, so the set isn't accessed concurrently
+                .collect(() -> new HashSet<BsonValue>(), Set::add)
+                .flatMap(matching -> oplog.tail(start)
+                        .buffer(WATCH_BATCH_MILLIS, TimeUnit.MILLISECONDS, WATCH_BATCH_SIZE)
+                        .onBackpressureBuffer()
+                        .filter(entries -> !entries.isEmpty())
+                        .concatMap(entries -> changes(entries, matching, documents, filter, codec))));
+    }
+
+    private Observable<ChangeEvent<K>> changes(List<BsonDocument> entries, Set<BsonValue> matching,
+                                               MongoCollection<BsonDocument> documents, BsonDocument filter,
+                                               Codec<K> codec) {
+        Set<BsonValue> updatedIds = new LinkedHashSet<BsonValue>();
+        for (BsonDocument entry : entries) {
+            if (entry.getString(OplogTail.OPERATION).getValue().equals(OplogTail.UPDATE)) {
+                updatedIds.add(entry.getDocument(OplogTail.UPDATED_OBJECT).get(ID_FIELD));
+            }
+        }
+        Observable<Map<BsonValue, BsonDocument>> updated = updatedIds.isEmpty()
+                ? Observable.just(Collections.<BsonValue, BsonDocument>emptyMap())
+                : documents.find(Filters.and(Filters.in(ID_FIELD, updatedIds), filter))
+                        .toObservable()
+                        .toMap(document -> document.get(ID_FIELD));
+        return updated.flatMapIterable(current -> {
+            List<ChangeEvent<K>> events = new ArrayList<ChangeEvent<K>>(entries.size());
+            for (BsonDocument entry : entries) {
+                String operation = entry.getString(OplogTail.OPERATION).getValue();
+                if (operation.equals(OplogTail.INSERT)) {
+                    BsonDocument document = entry.getDocument(OplogTail.OBJECT);
+                    BsonValue id = document.get(ID_FIELD);
+                    matching.add(id);
+                    events.add(new ChangeEvent<K>(ChangeEvent.Type.INSERT, id, decode(codec, document)));
+                } else if (operation.equals(OplogTail.UPDATE)) {
+                    BsonValue id = entry.getDocument(OplogTail.UPDATED_OBJECT).get(ID_FIELD);
+                    BsonDocument document = current.get(id);
+                    if (document != null) {
+                        matching.add(id);
+                        events.add(new ChangeEvent<K>(ChangeEvent.Type.UPDATE, id, decode(codec, document)));
+                    } else if (matching.remove(id)) {
+                        events.add(new ChangeEvent<K>(ChangeEvent.Type.DELETE, id, null));
+                    }
+                } else {
+                    BsonValue id = entry.getDocument(OplogTail.OBJECT).get(ID_FIELD);
+                    if (matching.remove(id)) {
+                        events.add(new ChangeEvent<K>(ChangeEvent.Type.DELETE, id, null));
+                    }
                 }
             }
-            return obj;
+            return events;
+        });
+    }
+
+    private static <K> K decode(Codec<K> codec, BsonDocument document) {
+        return codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+    }
+
+    /**
+     * Get the given collection, decoding documents into the result type of this query
+     *
+     * @param collection collection name
+     * @return collection
+     */
+    protected MongoCollection<K> getCollection(String collection) {
+        return database.getCollection(collection, entityClass).withCodecRegistry(codecRegistry);
+    }
+
+    /**
+     * Serialize the filter, sort and projection of this query the way a find sends them, through the plan cache
+     * and the direct filters if enabled. Joins are resolved with queries when fetching, so they aren't included.
+     *
+     * @return serialized query
+     */
+    public SerializedQuery serialize() {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        return serialize(metadata.getWhere(), metadata.getOrderBy(), metadata);
+    }
+
+    private boolean isLookup(QueryMetadata metadata) {
+        return lookupJoins && !metadata.getJoins().isEmpty();
+    }
+
+    private LookupPipeline createPipeline(QueryMetadata metadata) {
+        return new LookupPipeline(metadata, this::getCollectionName);
+    }
+
+    /**
+     * Run the given query with the filter of this query, after resolving the joins if there are any.
+     * Nothing is emitted if a join resolves to no documents.
+     */
+    private <T> Observable<T> withFilter(Func1<Predicate, Observable<T>> query) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        if (metadata.getJoins().isEmpty()) {
+            return query.call(metadata.getWhere());
         }
-        return null;
+        // resolved per subscription, a retry or another subscriber must not add to the predicates of an earlier one
+        return Observable.defer(() -> createJoinFilter(metadata))
+                .onErrorResumeNext(e -> e instanceof NoResults ? Observable.<Predicate>empty() : Observable.<Predicate>error(e))
+                .flatMap(joinFilter -> query.call(ExpressionUtils.allOf(metadata.getWhere(), joinFilter)));
     }
 
-    private Predicate createFilter(QueryMetadata metadata) {
-        Predicate filter;
-        if (!metadata.getJoins().isEmpty()) {
-            filter = ExpressionUtils.allOf(metadata.getWhere(), createJoinFilter(metadata));
+    private Observable<K> find(String collection, @Nullable Predicate filter, boolean first) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        String operation = first ? "first" : "find";
+        long start = metrics != QueryMetrics.NONE ? System.nanoTime() : 0;
+        SerializedQuery query = serialize(filter, metadata.getOrderBy(), metadata);
+        long serialization = metrics != QueryMetrics.NONE ? System.nanoTime() - start : 0;
+        boolean cached = resultCache != null && resultCache.isCached(collection);
+        // a shared flight buffers all results, so it would ignore the batch size and the demand of the subscriber
+        boolean shared = singleFlight != null && batchSize == 0;
+        if (!cached && !shared) {
+            return find(collection, entityClass, query, filter, first, operation, serialization);
+        }
+        String key = query.toKey(collection, entityClass, operation, metadata.getModifiers(), codecRegistry);
+        if (!cached) {
+            return singleFlight.execute(key, find(collection, entityClass, query, filter, first, operation, serialization));
+        }
+        // cached results are kept as documents and decoded for each subscriber
+        Observable<BsonDocument> documents = find(collection, BsonDocument.class, query, filter, first, operation,
+                serialization);
+        if (shared) {
+            documents = singleFlight.execute(key, documents);
+        }
+        return resultCache.execute(collection, key, documents, codecRegistry.get(entityClass));
+    }
+
+    private <D> Observable<D> find(String collection, Class<D> documentClass, SerializedQuery query,
+                                   @Nullable Predicate filter, boolean first, String operation, long serializationNanos) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        return measured(collection, documentClass, operation, filter, metadata.getOrderBy(), query, serializationNanos,
+                documents -> {
+                    FindObservable<D> find = createFind(documents, query, metadata.getModifiers());
+                    return first ? find.first() : find.toObservable();
+                });
+    }
+
+    /**
+     * Run the given execution on the collection, measuring each subscription into the metrics of this query.
+     * Decoded bytes are counted for the documents the collection decodes into the given class.
+     *
+     * @param query serialized query, or null to serialize the filter for the metrics only
+     */
+    private <D, T> Observable<T> measured(String collection, Class<D> documentClass, String operation,
+                                          @Nullable Predicate filter, List<OrderSpecifier<?>> orderBy,
+                                          @Nullable SerializedQuery query, long serializationNanos,
+                                          Func1<MongoCollection<D>, Observable<T>> execution) {
+        MongoCollection<D> target = getCollection(collection).withDocumentClass(documentClass);
+        if (metrics == QueryMetrics.NONE) {
+            return execution.call(target);
+        }
+        QueryMetadata metadata = queryMixin.getMetadata();
+        QueryShape shape = QueryShape.of(filter, orderBy, metadata.getProjection());
+        QueryMeasurement<D> measurement = new QueryMeasurement<D>(codecRegistry.get(documentClass), metrics,
+                collection, operation, shape != null ? shape.getKey() : QueryEvent.UNKNOWN_SHAPE, serializationNanos,
+                query != null ? query : serialize(filter, orderBy, metadata), metadata.getModifiers());
+        return measurement.measure(counting -> execution.call(target.withCodecRegistry(
+                CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(counting), codecRegistry))));
+    }
+
+    private static <K> FindObservable<K> createFind(MongoCollection<K> collection, SerializedQuery query,
+                                                    QueryModifiers modifiers) {
+        FindObservable<K> find = collection
+                .find(query.getFilter())
+                .projection(query.getProjection())
+                .sort(query.getSort());
+        return applyModifiers(find, modifiers);
+    }
+
+    static <K> FindObservable<K> applyModifiers(FindObservable<K> find, QueryModifiers modifiers) {
+        if (modifiers.getLimit() != null) {
+            find = find.limit(modifiers.getLimit().intValue());
+        }
+        if (modifiers.getOffset() != null) {
+            find = find.skip(modifiers.getOffset().intValue());
+        }
+        return find;
+    }
+
+    private SerializedQuery serialize(@Nullable Predicate filterExpression, List<OrderSpecifier<?>> orderBy,
+                                      QueryMetadata metadata) {
+        if (planCache != null) {
+            return planCache.serialize(filterExpression, orderBy, metadata.getProjection(), metadata.getParams());
+        }
+        MongodbSerializer serializer = getSerializer(metadata);
+        Bson filterCondition;
+        if (filterExpression == null) {
+            filterCondition = new BsonDocument();
+        } else if (directFilters) {
+            filterCondition = new DirectBsonFilter(filterExpression, serializer);
         } else {
-            filter = metadata.getWhere();
+            filterCondition = (Bson) serializer.handle(filterExpression);
+        }
+        Bson projection = createProjection(metadata.getProjection());
+        Bson sort = createSort(orderBy);
+        return new SerializedQuery(filterCondition, sort, projection);
+    }
+
+    private MongodbSerializer getSerializer(QueryMetadata metadata) {
+        return metadata.getParams().isEmpty() ? serializer : new MongodbSerializer(metadata.getParams());
+    }
+
+    /**
+     * Resolve the joins of the given query into a filter on the joined references, starting from the last join.
+     * Each join level is resolved with one query, which fails with {@link NoResults} if it matches nothing.
+     *
+     * @param metadata query metadata
+     * @return filter
+     */
+    protected Observable<Predicate> createJoinFilter(QueryMetadata metadata) {
+        return createJoinFilter(metadata, metadata.getJoins().size() - 1, HashMultimap.<Expression<?>, Predicate>create());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Observable<Predicate> createJoinFilter(QueryMetadata metadata, int index,
+                                                   Multimap<Expression<?>, Predicate> predicates) {
+        List<JoinExpression> joins = metadata.getJoins();
+        if (index < 0) {
+            Path<?> source = (Path<?>) ((Operation<?>) joins.get(0).getTarget()).getArg(0);
+            return Observable.just(ExpressionUtils.allOf(predicates.get(source.getRoot())));
         }
-        return filter;
+        JoinExpression join = joins.get(index);
+        Path<?> source = (Path<?>) ((Operation<?>) join.getTarget()).getArg(0);
+        Path<?> target = (Path<?>) ((Operation<?>) join.getTarget()).getArg(1);
+        Predicate filter = ExpressionUtils.allOf(join.getCondition(), ExpressionUtils.allOf(predicates.get(target.getRoot())));
+        return getIds(target.getType(), filter, metadata).flatMap(ids -> {
+            if (ids.isEmpty()) {
+                return Observable.<Predicate>error(new NoResults());
+            }
+            Path<Object> path = ExpressionUtils.path(Object.class, source, "$id");
+            predicates.put(source.getRoot(), ExpressionUtils.in(path, ids));
+            return createJoinFilter(metadata, index - 1, predicates);
+        });
+    }
+
+    private Observable<List<BsonValue>> getIds(Class<?> targetType, @Nullable Predicate condition, QueryMetadata metadata) {
+        String collection = getCollectionName(targetType);
+        BsonDocument filter = condition == null ? new BsonDocument()
+                : ((Bson) getSerializer(metadata).handle(condition)).toBsonDocument(BsonDocument.class, codecRegistry);
+        if (joinIdCache != null) {
+            List<BsonValue> ids = joinIdCache.get(collection, filter);
+            if (ids != null) {
+                return Observable.just(ids);
+            }
+        }
+        int maxIds = maxJoinIds;
+        JoinIdCache cache = joinIdCache;
+        return database.getCollection(collection, BsonDocument.class)
+                .withCodecRegistry(codecRegistry)
+                .find(filter)
+                .projection(Projections.include(ID_FIELD))
+                .limit(maxIds + 1)
+                .toObservable()
+                .map(document -> document.get(ID_FIELD))
+                .toList()
+                .map(ids -> {
+                    if (ids.size() > maxIds) {
+                        throw new IllegalStateException("Join on " + collection + " matches more than " + maxIds + " documents");
+                    }
+                    if (cache != null) {
+                        cache.put(collection, filter, ids);
+                    }
+                    return ids;
+                });
+    }
+
+    /**
+     * Get the name of the collection the given entity type is stored in, the Morphia entity name by default
+     *
+     * @param type entity type
+     * @return collection name
+     */
+    protected String getCollectionName(Class<?> type) {
+        for (Annotation annotation : type.getAnnotations()) {
+            if (annotation.annotationType().getName().equals(MORPHIA_ENTITY)) {
+                try {
+                    String value = (String) annotation.annotationType().getMethod("value").invoke(annotation);
+                    if (!value.isEmpty() && !value.equals(".")) {
+                        return value;
+                    }
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return type.getSimpleName();
+    }
+
+    private Bson createSort(List<OrderSpecifier<?>> orderBys) {
+        return serializer.toSort(orderBys);
+    }
+
+    private Bson createProjection(Expression<?> projection) {
+        return serializer.toProjection(projection);
     }
 
 }
@@ -0,0 +1,189 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.types.ConstantImpl;
+import com.querydsl.core.types.Path;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@code AsyncMongoUpdateClause} updates the documents matching a predicate.
+ * <pre>
+ * AsyncMongoUpdateClause.forDatabase(database)
+ *     .where(user.lastName.eq("Jantunen"))
+ *     .set(user.firstName, "Jaakko")
+ *     .inc(user.age, 1)
+ *     .executeOn("user");
+ * </pre>
+ * Clauses can also be collected into an {@link AsyncMongoBulkWrite}.
+ */
+public class AsyncMongoUpdateClause {
+
+    @Nullable
+    private final MongoDatabase database;
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+
+    private final BooleanBuilder where = new BooleanBuilder();
+
+    private final List<Bson> updates = new ArrayList<Bson>();
+
+    private boolean upsert;
+
+    private boolean single;
+
+    protected AsyncMongoUpdateClause(@Nullable MongoDatabase database) {
+        this.database = database;
+    }
+
+    public static AsyncMongoUpdateClause forDatabase(MongoDatabase database) {
+        return new AsyncMongoUpdateClause(database);
+    }
+
+    public AsyncMongoUpdateClause where(Predicate... e) {
+        for (Predicate predicate : e) {
+            where.and(predicate);
+        }
+        return this;
+    }
+
+    /**
+     * Set the value of the given path
+     *
+     * @param path path to set
+     * @param value value, or null to set null
+     * @return the current object
+     */
+    public <T> AsyncMongoUpdateClause set(Path<T> path, @Nullable T value) {
+        updates.add(Updates.set(toKey(path), toValue(value)));
+        return this;
+    }
+
+    /**
+     * Increment the value of the given path
+     *
+     * @param path path to increment
+     * @param amount amount to add
+     * @return the current object
+     */
+    public <T extends Number> AsyncMongoUpdateClause inc(Path<T> path, T amount) {
+        updates.add(Updates.inc(toKey(path), amount));
+        return this;
+    }
+
+    /**
+     * Append a value to the given collection
+     *
+     * @param path collection path
+     * @param value value to append
+     * @return the current object
+     */
+    public <T> AsyncMongoUpdateClause push(Path<? extends Collection<? super T>> path, T value) {
+        updates.add(Updates.push(toKey(path), toValue(value)));
+        return this;
+    }
+
+    /**
+     * Remove the given path
+     *
+     * @param path path to remove
+     * @return the current object
+     */
+    public AsyncMongoUpdateClause unset(Path<?> path) {
+        updates.add(Updates.unset(toKey(path)));
+        return this;
+    }
+
+    /**
+     * Insert a document if none matches
+     *
+     * @param upsert true to insert a document if none matches
+     * @return the current object
+     */
+    public AsyncMongoUpdateClause upsert(boolean upsert) {
+        this.upsert = upsert;
+        return this;
+    }
+
+    /**
+     * Update only the first matching document instead of all of them
+     *
+     * @return the current object
+     */
+    public AsyncMongoUpdateClause single() {
+        this.single = true;
+        return this;
+    }
+
+    /**
+     * Update the matching documents of the given collection
+     *
+     * @param collection collection name
+     * @return update result
+     */
+    public Observable<UpdateResult> executeOn(String collection) {
+        if (database == null) {
+            throw new IllegalStateException("Clause of a bulk write can't be executed on its own");
+        }
+        Bson filter = toFilter();
+        Bson update = toUpdate();
+        UpdateOptions options = new UpdateOptions().upsert(upsert);
+        return single
+                ? getCollection(collection).updateOne(filter, update, options)
+                : getCollection(collection).updateMany(filter, update, options);
+    }
+
+    /**
+     * Create the bulk write model of this clause
+     *
+     * @return write model
+     */
+    public <T> WriteModel<T> toWriteModel() {
+        UpdateOptions options = new UpdateOptions().upsert(upsert);
+        return single
+                ? new UpdateOneModel<T>(toFilter(), toUpdate(), options)
+                : new UpdateManyModel<T>(toFilter(), toUpdate(), options);
+    }
+
+    private MongoCollection<Document> getCollection(String collection) {
+        return database.getCollection(collection)
+                .withCodecRegistry(GeneratedCodecProvider.withGeneratedCodecs(database.getCodecRegistry()));
+    }
+
+    private Bson toFilter() {
+        Predicate predicate = where.getValue();
+        return predicate == null ? new BsonDocument() : (Bson) serializer.handle(predicate);
+    }
+
+    private Bson toUpdate() {
+        if (updates.isEmpty()) {
+            throw new IllegalStateException("No updates given");
+        }
+        return Updates.combine(updates);
+    }
+
+    private String toKey(Path<?> path) {
+        return (String) serializer.handle(path);
+    }
+
+    private Object toValue(@Nullable Object value) {
+        return value == null ? null : serializer.handle(ConstantImpl.create(value));
+    }
+
+}
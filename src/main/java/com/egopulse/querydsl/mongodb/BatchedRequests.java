@@ -0,0 +1,105 @@
+package com.egopulse.querydsl.mongodb;
+
+import rx.Observable;
+import rx.Subscriber;
+
+/**
+ * Operator that never requests more than {@code batchSize} elements from upstream at a time.
+ * <p>
+ * The rx driver sizes cursor batches by the outstanding demand, so capping the upstream
+ * request keeps at most one batch in flight regardless of how much the subscriber asked for.
+ *
+ * @param <T> element type
+ */
+final class BatchedRequests<T> implements Observable.Operator<T, T> {
+
+    private final int batchSize;
+
+    BatchedRequests(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public Subscriber<? super T> call(Subscriber<? super T> child) {
+        BatchedSubscriber<T> parent = new BatchedSubscriber<T>(child, batchSize);
+        child.add(parent);
+        child.setProducer(parent::requestMore);
+        return parent;
+    }
+
+    private static final class BatchedSubscriber<T> extends Subscriber<T> {
+
+        private final Subscriber<? super T> child;
+
+        private final int batchSize;
+
+        // guarded by this
+        private long requested;
+
+        // guarded by this
+        private long outstanding;
+
+        BatchedSubscriber(Subscriber<? super T> child, int batchSize) {
+            this.child = child;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void onStart() {
+            request(0);
+        }
+
+        void requestMore(long n) {
+            if (n < 0) {
+                throw new IllegalArgumentException("n >= 0 required but it was " + n);
+            }
+            synchronized (this) {
+                requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            replenish();
+        }
+
+        private void replenish() {
+            long toRequest = 0;
+            synchronized (this) {
+                if (outstanding == 0 && requested > 0) {
+                    toRequest = Math.min(batchSize, requested);
+                    outstanding = toRequest;
+                }
+            }
+            if (toRequest > 0) {
+                request(toRequest);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            boolean exhausted;
+            synchronized (this) {
+                outstanding--;
+                if (requested != Long.MAX_VALUE) {
+                    requested--;
+                }
+                exhausted = outstanding == 0;
+            }
+            child.onNext(t);
+            if (exhausted) {
+                replenish();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            child.onError(e);
+        }
+
+        @Override
+        public void onCompleted() {
+            child.onCompleted();
+        }
+    }
+
+}
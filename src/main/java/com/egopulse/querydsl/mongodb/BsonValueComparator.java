@@ -0,0 +1,92 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.BsonType;
+import org.bson.BsonValue;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+
+/**
+ * Compares BSON values in the sort order of the server: values of different types by the rank of their type,
+ * numbers by value, integers exactly, strings by their code units. Missing values sort like null. Documents,
+ * arrays and other composite values compare equal within their type.
+ */
+final class BsonValueComparator implements Comparator<BsonValue> {
+
+    static final BsonValueComparator INSTANCE = new BsonValueComparator();
+
+    private BsonValueComparator() {
+    }
+
+    @Override
+    public int compare(@Nullable BsonValue first, @Nullable BsonValue second) {
+        int rank = Integer.compare(rank(first), rank(second));
+        if (rank != 0 || first == null || second == null) {
+            return rank;
+        }
+        if (isIntegral(first) && isIntegral(second)) {
+            return Long.compare(first.asNumber().longValue(), second.asNumber().longValue());
+        } else if (first.isNumber()) {
+            return Double.compare(first.asNumber().doubleValue(), second.asNumber().doubleValue());
+        } else if (first.isString() || first.isSymbol()) {
+            return stringValue(first).compareTo(stringValue(second));
+        } else if (first.isObjectId()) {
+            return first.asObjectId().getValue().compareTo(second.asObjectId().getValue());
+        } else if (first.isBoolean()) {
+            return Boolean.compare(first.asBoolean().getValue(), second.asBoolean().getValue());
+        } else if (first.isDateTime()) {
+            return Long.compare(first.asDateTime().getValue(), second.asDateTime().getValue());
+        } else if (first.isTimestamp()) {
+            int time = Integer.compare(first.asTimestamp().getTime(), second.asTimestamp().getTime());
+            return time != 0 ? time : Integer.compare(first.asTimestamp().getInc(), second.asTimestamp().getInc());
+        }
+        return 0;
+    }
+
+    private static boolean isIntegral(BsonValue value) {
+        return value.isInt32() || value.isInt64();
+    }
+
+    private static String stringValue(BsonValue value) {
+        return value.isString() ? value.asString().getValue() : value.asSymbol().getSymbol();
+    }
+
+    private static int rank(@Nullable BsonValue value) {
+        BsonType type = value == null ? BsonType.NULL : value.getBsonType();
+        switch (type) {
+            case MIN_KEY:
+                return 0;
+            case NULL:
+            case UNDEFINED:
+                return 1;
+            case INT32:
+            case INT64:
+            case DOUBLE:
+                return 2;
+            case STRING:
+            case SYMBOL:
+                return 3;
+            case DOCUMENT:
+                return 4;
+            case ARRAY:
+                return 5;
+            case BINARY:
+                return 6;
+            case OBJECT_ID:
+                return 7;
+            case BOOLEAN:
+                return 8;
+            case DATE_TIME:
+                return 9;
+            case TIMESTAMP:
+                return 10;
+            case REGULAR_EXPRESSION:
+                return 11;
+            case MAX_KEY:
+                return 13;
+            default:
+                return 12;
+        }
+    }
+
+}
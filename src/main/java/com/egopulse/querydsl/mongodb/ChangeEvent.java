@@ -0,0 +1,68 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.BsonValue;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@code ChangeEvent} is a change of a watched collection, see {@link AsyncMongoQuery#watch}.
+ *
+ * @param <T> document type
+ */
+public final class ChangeEvent<T> {
+
+    public enum Type {
+        /**
+         * A matching document was inserted
+         */
+        INSERT,
+        /**
+         * A matching document was updated
+         */
+        UPDATE,
+        /**
+         * A document was deleted, or updated so that it no longer matches
+         */
+        DELETE
+    }
+
+    private final Type type;
+
+    private final BsonValue id;
+
+    @Nullable
+    private final T document;
+
+    ChangeEvent(Type type, BsonValue id, @Nullable T document) {
+        this.type = type;
+        this.id = id;
+        this.document = document;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return id of the changed document
+     */
+    public BsonValue getId() {
+        return id;
+    }
+
+    /**
+     * Get the document after the change
+     *
+     * @return document, or null for deletes
+     */
+    @Nullable
+    public T getDocument() {
+        return document;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + id;
+    }
+
+}
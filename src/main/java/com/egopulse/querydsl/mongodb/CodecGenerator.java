@@ -0,0 +1,390 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.mongodb.morphia.annotations.Embedded;
+import org.mongodb.morphia.annotations.Entity;
+import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Property;
+import org.mongodb.morphia.annotations.Reference;
+import org.mongodb.morphia.annotations.Transient;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.FilerException;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * {@code CodecGenerator} generates a {@code Codec<T>} for each {@code @Entity} and {@code @Embedded} type
+ * next to its query type, to be picked up at runtime by {@link GeneratedCodecProvider}.
+ * <p>
+ * Fields are accessed directly when visible from the entity package, otherwise through bean accessors.
+ * {@code @Reference} and transient fields are not mapped.
+ */
+final class CodecGenerator {
+
+    private static final String IGNORED_FIELDNAME = ".";
+
+    private final ProcessingEnvironment processingEnv;
+
+    private final Elements elements;
+
+    private final Types types;
+
+    private final Set<String> generated = new HashSet<String>();
+
+    CodecGenerator(ProcessingEnvironment processingEnv) {
+        this.processingEnv = processingEnv;
+        this.elements = processingEnv.getElementUtils();
+        this.types = processingEnv.getTypeUtils();
+    }
+
+    void generate(RoundEnvironment roundEnv) {
+        Deque<TypeElement> queue = new ArrayDeque<TypeElement>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(Entity.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                queue.add((TypeElement) element);
+            }
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(Embedded.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                queue.add((TypeElement) element);
+            }
+        }
+        while (!queue.isEmpty()) {
+            TypeElement type = queue.poll();
+            if (generated.add(elements.getBinaryName(type).toString())) {
+                for (VariableElement field : getFields(type)) {
+                    if (field.getAnnotation(Embedded.class) != null) {
+                        addEmbeddedTypes(field.asType(), queue);
+                    }
+                }
+                if (isInstantiable(type)) {
+                    write(type);
+                }
+            }
+        }
+    }
+
+    private void addEmbeddedTypes(TypeMirror type, Deque<TypeElement> queue) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            addEmbeddedTypes(((ArrayType) type).getComponentType(), queue);
+        } else if (type.getKind() == TypeKind.DECLARED) {
+            DeclaredType declaredType = (DeclaredType) type;
+            for (TypeMirror argument : declaredType.getTypeArguments()) {
+                addEmbeddedTypes(argument, queue);
+            }
+            TypeElement element = (TypeElement) declaredType.asElement();
+            if (element.getKind() == ElementKind.CLASS && !element.getQualifiedName().toString().startsWith("java.")) {
+                queue.add(element);
+            }
+        }
+    }
+
+    private List<VariableElement> getFields(TypeElement type) {
+        List<VariableElement> fields = new ArrayList<VariableElement>();
+        TypeElement current = type;
+        while (current != null && !current.getQualifiedName().contentEquals(Object.class.getName())) {
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)
+                        && field.getAnnotation(Transient.class) == null) {
+                    fields.add(field);
+                }
+            }
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return fields;
+    }
+
+    private boolean isInstantiable(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || type.getModifiers().contains(Modifier.PRIVATE)
+                || (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))) {
+            return false;
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && isAccessible(constructor, type)) {
+                return true;
+            }
+        }
+        if (!constructors.isEmpty()) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "No codec generated, no accessible default constructor", type);
+        }
+        return constructors.isEmpty();
+    }
+
+    private boolean isAccessible(Element member, TypeElement codecType) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        return !modifiers.contains(Modifier.PRIVATE)
+                && elements.getPackageOf(member).equals(elements.getPackageOf(codecType));
+    }
+
+    private void write(TypeElement type) {
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String codecName = GeneratedCodecProvider.getCodecName(elements.getBinaryName(type).toString());
+        String simpleName = codecName.substring(codecName.lastIndexOf('.') + 1);
+        String typeName = type.getQualifiedName().toString();
+
+        List<Mapping> mappings = new ArrayList<Mapping>();
+        for (VariableElement field : getFields(type)) {
+            Mapping mapping = createMapping(type, field);
+            if (mapping != null) {
+                mappings.add(mapping);
+            }
+        }
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import com.egopulse.querydsl.mongodb.FieldType;\n");
+        source.append("import org.bson.BsonReader;\n");
+        source.append("import org.bson.BsonType;\n");
+        source.append("import org.bson.BsonWriter;\n");
+        source.append("import org.bson.codecs.Codec;\n");
+        source.append("import org.bson.codecs.DecoderContext;\n");
+        source.append("import org.bson.codecs.EncoderContext;\n");
+        source.append("import org.bson.codecs.configuration.CodecRegistry;\n\n");
+        source.append("import javax.annotation.Generated;\n\n");
+        source.append("/**\n * ").append(simpleName).append(" is a Querydsl generated codec for ")
+                .append(type.getSimpleName()).append("\n */\n");
+        source.append("@Generated(\"").append(MongoAnnotationProcessor.class.getName()).append("\")\n");
+        source.append("public class ").append(simpleName).append(" implements Codec<").append(typeName).append("> {\n\n");
+        for (int i = 0; i < mappings.size(); i++) {
+            source.append("    private static final FieldType FIELD").append(i).append(" = ")
+                    .append(mappings.get(i).fieldType).append(";\n\n");
+        }
+        source.append("    private final CodecRegistry registry;\n\n");
+        source.append("    public ").append(simpleName).append("(CodecRegistry registry) {\n");
+        source.append("        this.registry = registry;\n");
+        source.append("    }\n\n");
+
+        source.append("    @SuppressWarnings(\"unchecked\")\n");
+        source.append("    @Override\n");
+        source.append("    public ").append(typeName).append(" decode(BsonReader reader, DecoderContext decoderContext) {\n");
+        source.append("        ").append(typeName).append(" value = new ").append(typeName).append("();\n");
+        source.append("        reader.readStartDocument();\n");
+        source.append("        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {\n");
+        source.append("            Object v;\n");
+        source.append("            switch (reader.readName()) {\n");
+        for (int i = 0; i < mappings.size(); i++) {
+            Mapping mapping = mappings.get(i);
+            source.append("            case \"").append(mapping.name).append("\":\n");
+            if (mapping.write != null) {
+                source.append("                v = FIELD").append(i).append(".decode(reader, registry, decoderContext);\n");
+                source.append("                if (v != null) {\n");
+                source.append("                    ").append(String.format(mapping.write, "(" + mapping.javaType + ") v"))
+                        .append(";\n");
+                source.append("                }\n");
+            } else {
+                source.append("                reader.skipValue();\n");
+            }
+            source.append("                break;\n");
+        }
+        source.append("            default:\n");
+        source.append("                reader.skipValue();\n");
+        source.append("            }\n");
+        source.append("        }\n");
+        source.append("        reader.readEndDocument();\n");
+        source.append("        return value;\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public void encode(BsonWriter writer, ").append(typeName)
+                .append(" value, EncoderContext encoderContext) {\n");
+        source.append("        Object v;\n");
+        source.append("        writer.writeStartDocument();\n");
+        for (int i = 0; i < mappings.size(); i++) {
+            Mapping mapping = mappings.get(i);
+            if (mapping.read != null) {
+                source.append("        v = ").append(mapping.read).append(";\n");
+                source.append("        if (v != null) {\n");
+                source.append("            writer.writeName(\"").append(mapping.name).append("\");\n");
+                source.append("            FIELD").append(i).append(".encode(writer, v, registry, encoderContext);\n");
+                source.append("        }\n");
+            }
+        }
+        source.append("        writer.writeEndDocument();\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public Class<").append(typeName).append("> getEncoderClass() {\n");
+        source.append("        return ").append(typeName).append(".class;\n");
+        source.append("    }\n\n");
+        source.append("}\n");
+
+        Filer filer = processingEnv.getFiler();
+        try {
+            JavaFileObject file = filer.createSourceFile(codecName, type);
+            try (Writer writer = file.openWriter()) {
+                writer.write(source.toString());
+            }
+        } catch (FilerException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Codec already generated: " + e.getMessage(), type);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write codec: " + e.getMessage(), type);
+        }
+    }
+
+    private Mapping createMapping(TypeElement type, VariableElement field) {
+        if (field.getAnnotation(Reference.class) != null) {
+            return null;
+        }
+        TypeMirror fieldType = field.asType();
+        String descriptor = getFieldType(fieldType);
+        if (descriptor == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Field type not supported by codec", field);
+            return null;
+        }
+
+        Mapping mapping = new Mapping();
+        mapping.name = getBsonName(field);
+        mapping.fieldType = descriptor;
+        mapping.javaType = fieldType.getKind().isPrimitive()
+                ? types.boxedClass((PrimitiveType) fieldType).getQualifiedName().toString()
+                : fieldType.toString();
+
+        String fieldName = field.getSimpleName().toString();
+        String capitalized = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+        ExecutableElement getter = findMethod(type, fieldType, "get" + capitalized, 0);
+        if (getter == null && fieldType.getKind() == TypeKind.BOOLEAN) {
+            getter = findMethod(type, fieldType, "is" + capitalized, 0);
+        }
+        ExecutableElement setter = findMethod(type, fieldType, "set" + capitalized, 1);
+
+        boolean fieldAccessible = isAccessible(field, type);
+        if (fieldAccessible) {
+            mapping.read = "value." + fieldName;
+        } else if (getter != null) {
+            mapping.read = "value." + getter.getSimpleName() + "()";
+        }
+        if (fieldAccessible && !field.getModifiers().contains(Modifier.FINAL)) {
+            mapping.write = "value." + fieldName + " = %s";
+        } else if (setter != null) {
+            mapping.write = "value." + setter.getSimpleName() + "(%s)";
+        } else if (mapping.read != null && isContainer(fieldType)) {
+            mapping.write = mapping.read + (isMap(fieldType) ? ".putAll(%s)" : ".addAll(%s)");
+        }
+        return mapping;
+    }
+
+    private ExecutableElement findMethod(TypeElement type, TypeMirror fieldType, String name, int parameters) {
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            if (method.getSimpleName().contentEquals(name) && method.getParameters().size() == parameters
+                    && !method.getModifiers().contains(Modifier.STATIC) && isAccessible(method, type)) {
+                TypeMirror methodType = parameters == 0 ? method.getReturnType() : method.getParameters().get(0).asType();
+                if (types.isSameType(types.erasure(methodType), types.erasure(fieldType))) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private String getBsonName(VariableElement field) {
+        if (field.getAnnotation(Id.class) != null) {
+            return "_id";
+        }
+        String name = null;
+        Property property = field.getAnnotation(Property.class);
+        if (property != null) {
+            name = property.value();
+        }
+        Embedded embedded = field.getAnnotation(Embedded.class);
+        if (embedded != null) {
+            name = embedded.value();
+        }
+        return name == null || name.equals(IGNORED_FIELDNAME) ? field.getSimpleName().toString() : name;
+    }
+
+    private boolean isContainer(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && (isMap(type) || isSubtype(type, Collection.class));
+    }
+
+    private boolean isMap(TypeMirror type) {
+        return isSubtype(type, Map.class);
+    }
+
+    private boolean isSubtype(TypeMirror type, Class<?> supertype) {
+        TypeElement element = elements.getTypeElement(supertype.getName());
+        return types.isSubtype(types.erasure(type), types.erasure(element.asType()));
+    }
+
+    /**
+     * Get the {@link FieldType} expression for the given type, or null if the type can't be mapped
+     */
+    private String getFieldType(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return "FieldType.of(" + types.boxedClass((PrimitiveType) type).getQualifiedName() + ".class)";
+        } else if (type.getKind() == TypeKind.ARRAY) {
+            TypeMirror componentType = ((ArrayType) type).getComponentType();
+            String component = getFieldType(componentType);
+            return component != null
+                    ? "FieldType.array(" + types.erasure(componentType) + ".class, " + component + ")" : null;
+        } else if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        DeclaredType declaredType = (DeclaredType) type;
+        String rawType = ((TypeElement) declaredType.asElement()).getQualifiedName().toString();
+        List<? extends TypeMirror> arguments = declaredType.getTypeArguments();
+        if (isSubtype(type, Collection.class)) {
+            if (arguments.size() != 1 || !isSupported(rawType, true)) {
+                return null;
+            }
+            String element = getFieldType(arguments.get(0));
+            return element != null ? "FieldType.collection(" + rawType + ".class, " + element + ")" : null;
+        } else if (isMap(type)) {
+            if (arguments.size() != 2 || !isSupported(rawType, false)
+                    || !arguments.get(0).toString().equals(String.class.getName())) {
+                return null;
+            }
+            String value = getFieldType(arguments.get(1));
+            return value != null ? "FieldType.map(" + rawType + ".class, " + value + ")" : null;
+        }
+        return "FieldType.of(" + rawType + ".class)";
+    }
+
+    private boolean isSupported(String containerType, boolean collection) {
+        try {
+            Class<?> type = Class.forName(containerType);
+            return collection ? FieldType.isSupportedCollection(type) : FieldType.isSupportedMap(type);
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static final class Mapping {
+
+        String name;
+
+        String fieldType;
+
+        String javaType;
+
+        String read;
+
+        String write;
+
+    }
+
+}
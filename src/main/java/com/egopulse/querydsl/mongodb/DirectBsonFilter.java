@@ -0,0 +1,262 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.types.Constant;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Operation;
+import com.querydsl.core.types.Operator;
+import com.querydsl.core.types.Ops;
+import com.querydsl.core.types.Path;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code DirectBsonFilter} writes a Querydsl predicate straight into a {@link BsonWriter} in a single pass,
+ * without building the intermediate {@code Filters} objects of {@link MongodbSerializer#handle(Expression)}.
+ * <p>
+ * The output is the same as rendering the filters of {@link MongodbSerializer}. Sub-trees whose rendering
+ * depends on the driver merging clauses, such as negations or conjunctions of several clauses on the same key,
+ * are rendered through {@link MongodbSerializer} and piped into the writer.
+ */
+public final class DirectBsonFilter implements Bson {
+
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+    private final Expression<?> predicate;
+
+    private final MongodbSerializer serializer;
+
+    public DirectBsonFilter(Expression<?> predicate) {
+        this(predicate, new MongodbSerializer());
+    }
+
+    public DirectBsonFilter(Expression<?> predicate, MongodbSerializer serializer) {
+        this.predicate = predicate;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, CodecRegistry codecRegistry) {
+        BsonDocument document = new BsonDocument();
+        encode(new BsonDocumentWriter(document), codecRegistry);
+        return document;
+    }
+
+    /**
+     * Encode the filter as raw BSON
+     *
+     * @param codecRegistry codec registry for the constant values
+     * @return filter document
+     */
+    public RawBsonDocument toRawBsonDocument(CodecRegistry codecRegistry) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            encode(writer, codecRegistry);
+        }
+        return new RawBsonDocument(buffer.toByteArray());
+    }
+
+    /**
+     * Write the filter document
+     *
+     * @param writer writer positioned where the document starts
+     * @param codecRegistry codec registry for the constant values
+     */
+    public void encode(BsonWriter writer, CodecRegistry codecRegistry) {
+        writeDocument(writer, predicate, codecRegistry);
+    }
+
+    private void writeDocument(BsonWriter writer, Expression<?> expr, CodecRegistry codecRegistry) {
+        List<Operation<?>> clauses = new ArrayList<Operation<?>>();
+        if (!(expr instanceof Operation<?>) || !addClauses((Operation<?>) expr, clauses)) {
+            pipe(writer, expr, codecRegistry);
+            return;
+        }
+        String[] keys = new String[clauses.size()];
+        Set<String> seen = clauses.size() > 1 ? new HashSet<String>() : null;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = getKey(clauses.get(i));
+            if (keys[i] == null || (seen != null && !seen.add(keys[i]))) {
+                pipe(writer, expr, codecRegistry);
+                return;
+            }
+        }
+        writer.writeStartDocument();
+        for (int i = 0; i < keys.length; i++) {
+            writeClause(writer, clauses.get(i), keys[i], codecRegistry);
+        }
+        writer.writeEndDocument();
+    }
+
+    /**
+     * Flatten a conjunction into its clauses
+     */
+    private static boolean addClauses(Operation<?> expr, List<Operation<?>> clauses) {
+        if (expr.getOperator() != Ops.AND) {
+            clauses.add(expr);
+            return true;
+        }
+        for (Expression<?> arg : expr.getArgs()) {
+            if (!(arg instanceof Operation<?>) || !addClauses((Operation<?>) arg, clauses)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the top level key of a clause, or null if the clause is not written directly
+     */
+    private String getKey(Operation<?> expr) {
+        Operator op = expr.getOperator();
+        if (op == Ops.OR || op == Ops.COL_IS_EMPTY) {
+            return op == Ops.OR || expr.getArg(0) instanceof Path<?> ? "$or" : null;
+        } else if (op == Ops.EQ && isSizeOperation(expr.getArg(0))) {
+            Operation<?> lhs = (Operation<?>) expr.getArg(0);
+            return lhs.getArg(0) instanceof Path<?> && expr.getArg(1) instanceof Constant<?>
+                    ? serializer.asDBKey(lhs, 0) : null;
+        } else if (op == Ops.IN || op == Ops.NOT_IN) {
+            int valueIndex = MongodbSerializer.isValue(expr.getArg(1)) ? 1 : 0;
+            Expression<?> path = expr.getArg(1 - valueIndex);
+            return Collection.class.isAssignableFrom(expr.getArg(valueIndex).getType()) && path instanceof Path<?>
+                    ? serializer.asDBKey(expr, 1 - valueIndex) : null;
+        } else if (op == Ops.CONTAINS_KEY) {
+            return expr.getArg(0) instanceof Path<?>
+                    ? serializer.visit((Path<?>) expr.getArg(0), null) + "." + expr.getArg(1).toString() : null;
+        } else if (op == Ops.EQ || op == Ops.NE || op == Ops.LT || op == Ops.GT || op == Ops.LOE || op == Ops.GOE
+                || op == Ops.BETWEEN || op == Ops.STRING_IS_EMPTY || op == Ops.IS_NULL || op == Ops.IS_NOT_NULL
+                || MongodbSerializer.TEXT_MATCHING_OPS.contains(op)) {
+            return expr.getArg(0) instanceof Path<?> ? serializer.asDBKey(expr, 0) : null;
+        }
+        return null;
+    }
+
+    private static boolean isSizeOperation(Expression<?> expr) {
+        if (expr instanceof Operation<?>) {
+            Operator op = ((Operation<?>) expr).getOperator();
+            return op == Ops.COL_SIZE || op == Ops.ARRAY_SIZE;
+        }
+        return false;
+    }
+
+    private void writeClause(BsonWriter writer, Operation<?> expr, String key, CodecRegistry codecRegistry) {
+        Operator op = expr.getOperator();
+        writer.writeName(key);
+        if (op == Ops.OR) {
+            writer.writeStartArray();
+            writeDocument(writer, expr.getArg(0), codecRegistry);
+            writeDocument(writer, expr.getArg(1), codecRegistry);
+            writer.writeEndArray();
+        } else if (op == Ops.COL_IS_EMPTY) {
+            String field = serializer.asDBKey(expr, 0);
+            writer.writeStartArray();
+            writer.writeStartDocument();
+            writer.writeName(field);
+            writeOperator(writer, "$exists", false);
+            writer.writeEndDocument();
+            writer.writeStartDocument();
+            writer.writeName(field);
+            writer.writeStartDocument();
+            writer.writeName("$size");
+            writer.writeInt32(0);
+            writer.writeEndDocument();
+            writer.writeEndDocument();
+            writer.writeEndArray();
+        } else if (op == Ops.EQ && isSizeOperation(expr.getArg(0))) {
+            writer.writeStartDocument();
+            writer.writeName("$size");
+            writer.writeInt32((Integer) ((Constant<?>) expr.getArg(1)).getConstant());
+            writer.writeEndDocument();
+        } else if (op == Ops.EQ) {
+            writeValue(writer, serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.STRING_IS_EMPTY) {
+            writer.writeString("");
+        } else if (op == Ops.NE) {
+            writeOperator(writer, "$ne", serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.LT) {
+            writeOperator(writer, "$lt", serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.GT) {
+            writeOperator(writer, "$gt", serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.LOE) {
+            writeOperator(writer, "$lte", serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.GOE) {
+            writeOperator(writer, "$gte", serializer.asDBValue(expr, 1), codecRegistry);
+        } else if (op == Ops.BETWEEN) {
+            writer.writeStartDocument();
+            writer.writeName("$gte");
+            writeValue(writer, serializer.asDBValue(expr, 1), codecRegistry);
+            writer.writeName("$lte");
+            writeValue(writer, serializer.asDBValue(expr, 2), codecRegistry);
+            writer.writeEndDocument();
+        } else if (op == Ops.IS_NULL) {
+            writeOperator(writer, "$exists", false);
+        } else if (op == Ops.IS_NOT_NULL || op == Ops.CONTAINS_KEY) {
+            writeOperator(writer, "$exists", true);
+        } else if (op == Ops.IN || op == Ops.NOT_IN) {
+            int valueIndex = MongodbSerializer.isValue(expr.getArg(1)) ? 1 : 0;
+            String operator = op == Ops.IN ? "$in" : "$nin";
+            Object values = serializer.asDBValue(expr, valueIndex);
+            if (values instanceof Collection<?>) {
+                writer.writeStartDocument();
+                writer.writeName(operator);
+                writer.writeStartArray();
+                for (Object value : (Collection<?>) values) {
+                    writeValue(writer, value, codecRegistry);
+                }
+                writer.writeEndArray();
+                writer.writeEndDocument();
+            } else {
+                writeValue(writer, new Document(operator, values), codecRegistry);
+            }
+        } else {
+            writeValue(writer, serializer.toPattern(expr), codecRegistry);
+        }
+    }
+
+    private void writeOperator(BsonWriter writer, String operator, Object value, CodecRegistry codecRegistry) {
+        writer.writeStartDocument();
+        writer.writeName(operator);
+        writeValue(writer, value, codecRegistry);
+        writer.writeEndDocument();
+    }
+
+    private static void writeOperator(BsonWriter writer, String operator, boolean value) {
+        writer.writeStartDocument();
+        writer.writeName(operator);
+        writer.writeBoolean(value);
+        writer.writeEndDocument();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(BsonWriter writer, Object value, CodecRegistry codecRegistry) {
+        if (value == null) {
+            writer.writeNull();
+        } else if (value instanceof Bson) {
+            codecRegistry.get(BsonDocument.class).encode(writer,
+                    ((Bson) value).toBsonDocument(BsonDocument.class, codecRegistry), ENCODER_CONTEXT);
+        } else {
+            ((Codec<Object>) codecRegistry.get(value.getClass())).encode(writer, value, ENCODER_CONTEXT);
+        }
+    }
+
+    private void pipe(BsonWriter writer, Expression<?> expr, CodecRegistry codecRegistry) {
+        BsonDocument document = ((Bson) serializer.handle(expr)).toBsonDocument(BsonDocument.class, codecRegistry);
+        writer.pipe(new BsonDocumentReader(document));
+    }
+
+}
@@ -8,11 +8,15 @@ import java.util.List;
 public interface Fetchable<T> {
     Observable<List<T>> fetchFrom(String collection);
 
+    Observable<T> streamFrom(String collection);
+
 //    Observable<T> fetchFirst(String collection);
 
     Observable<T> fetchOneFrom(String collection);
 
-//    QueryResults<T> fetchResults(String collection);
+    Observable<QueryResults<T>> fetchResults(String collection);
+
+    Observable<Long> fetchCount(String collection);
 
-//    Observable<Long> fetchCount(String collection);
+    Observable<Boolean> exists(String collection);
 }
@@ -0,0 +1,303 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Describes the declared type of an entity field for the codecs generated by {@link MongoAnnotationProcessor}.
+ * <p>
+ * Generated codecs keep one {@code FieldType} per field in a constant, so decoding a document dispatches
+ * through these descriptors instead of inspecting the entity class reflectively.
+ */
+public abstract class FieldType {
+
+    private FieldType() { }
+
+    /**
+     * Field of a simple, enum or embedded type
+     *
+     * @param type field type
+     * @return descriptor
+     */
+    public static FieldType of(Class<?> type) {
+        if (type.isEnum()) {
+            return new EnumType(type);
+        }
+        return new SimpleType(type);
+    }
+
+    /**
+     * Array valued field
+     *
+     * @param componentType component type
+     * @param element component descriptor
+     * @return descriptor
+     */
+    public static FieldType array(Class<?> componentType, FieldType element) {
+        return new ArrayType(componentType, element);
+    }
+
+    /**
+     * Collection valued field
+     *
+     * @param type declared collection type
+     * @param element element descriptor
+     * @return descriptor
+     */
+    public static FieldType collection(Class<?> type, FieldType element) {
+        return new CollectionType(collectionFactory(type), element);
+    }
+
+    /**
+     * Map valued field with string keys
+     *
+     * @param type declared map type
+     * @param value value descriptor
+     * @return descriptor
+     */
+    public static FieldType map(Class<?> type, FieldType value) {
+        return new MapType(mapFactory(type), value);
+    }
+
+    /**
+     * Whether collections of the given declared type can be instantiated by {@link #collection(Class, FieldType)}
+     *
+     * @param type declared collection type
+     * @return true, if supported
+     */
+    public static boolean isSupportedCollection(Class<?> type) {
+        return collectionFactory(type) != null;
+    }
+
+    /**
+     * Whether maps of the given declared type can be instantiated by {@link #map(Class, FieldType)}
+     *
+     * @param type declared map type
+     * @return true, if supported
+     */
+    public static boolean isSupportedMap(Class<?> type) {
+        return mapFactory(type) != null;
+    }
+
+    /**
+     * Read the current value, returning null for BSON null
+     *
+     * @param reader reader positioned at the value
+     * @param registry codec registry
+     * @param context decoder context
+     * @return value
+     */
+    public Object decode(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+        if (reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+        return decodeValue(reader, registry, context);
+    }
+
+    /**
+     * Write a non-null value
+     *
+     * @param writer writer positioned after the field name
+     * @param value value
+     * @param registry codec registry
+     * @param context encoder context
+     */
+    public abstract void encode(BsonWriter writer, Object value, CodecRegistry registry, EncoderContext context);
+
+    protected abstract Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context);
+
+    private static Supplier<Collection<Object>> collectionFactory(Class<?> type) {
+        if (type == List.class || type == Collection.class || type == ArrayList.class) {
+            return ArrayList::new;
+        } else if (type == LinkedList.class) {
+            return LinkedList::new;
+        } else if (type == Set.class || type == LinkedHashSet.class) {
+            return LinkedHashSet::new;
+        } else if (type == HashSet.class) {
+            return HashSet::new;
+        } else if (type == SortedSet.class || type == NavigableSet.class || type == TreeSet.class) {
+            return TreeSet::new;
+        }
+        return null;
+    }
+
+    private static Supplier<Map<String, Object>> mapFactory(Class<?> type) {
+        if (type == Map.class || type == LinkedHashMap.class) {
+            return LinkedHashMap::new;
+        } else if (type == HashMap.class) {
+            return HashMap::new;
+        } else if (type == SortedMap.class || type == NavigableMap.class || type == TreeMap.class) {
+            return TreeMap::new;
+        }
+        return null;
+    }
+
+    private static final class SimpleType extends FieldType {
+
+        private final Class<?> type;
+
+        SimpleType(Class<?> type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void encode(BsonWriter writer, Object value, CodecRegistry registry, EncoderContext context) {
+            Codec<Object> codec = (Codec<Object>) registry.get(value.getClass());
+            context.encodeWithChildContext(codec, writer, value);
+        }
+
+        @Override
+        protected Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+            return registry.get(type).decode(reader, context);
+        }
+    }
+
+    private static final class EnumType extends FieldType {
+
+        @SuppressWarnings("rawtypes")
+        private final Class type;
+
+        EnumType(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, Object value, CodecRegistry registry, EncoderContext context) {
+            writer.writeString(((Enum<?>) value).name());
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+            return Enum.valueOf(type, reader.readString());
+        }
+    }
+
+    private static final class ArrayType extends FieldType {
+
+        private final Class<?> componentType;
+
+        private final FieldType element;
+
+        ArrayType(Class<?> componentType, FieldType element) {
+            this.componentType = componentType;
+            this.element = element;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, Object value, CodecRegistry registry, EncoderContext context) {
+            writer.writeStartArray();
+            for (int i = 0, length = Array.getLength(value); i < length; i++) {
+                writeElement(writer, element, Array.get(value, i), registry, context);
+            }
+            writer.writeEndArray();
+        }
+
+        @Override
+        protected Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+            List<Object> values = new ArrayList<Object>();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                values.add(element.decode(reader, registry, context));
+            }
+            reader.readEndArray();
+            Object array = Array.newInstance(componentType, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Array.set(array, i, values.get(i));
+            }
+            return array;
+        }
+    }
+
+    private static final class CollectionType extends FieldType {
+
+        private final Supplier<Collection<Object>> factory;
+
+        private final FieldType element;
+
+        CollectionType(Supplier<Collection<Object>> factory, FieldType element) {
+            if (factory == null) {
+                throw new IllegalArgumentException("Unsupported collection type");
+            }
+            this.factory = factory;
+            this.element = element;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, Object value, CodecRegistry registry, EncoderContext context) {
+            writer.writeStartArray();
+            for (Object item : (Iterable<?>) value) {
+                writeElement(writer, element, item, registry, context);
+            }
+            writer.writeEndArray();
+        }
+
+        @Override
+        protected Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+            Collection<Object> values = factory.get();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                values.add(element.decode(reader, registry, context));
+            }
+            reader.readEndArray();
+            return values;
+        }
+    }
+
+    private static final class MapType extends FieldType {
+
+        private final Supplier<Map<String, Object>> factory;
+
+        private final FieldType value;
+
+        MapType(Supplier<Map<String, Object>> factory, FieldType value) {
+            if (factory == null) {
+                throw new IllegalArgumentException("Unsupported map type");
+            }
+            this.factory = factory;
+            this.value = value;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, Object map, CodecRegistry registry, EncoderContext context) {
+            writer.writeStartDocument();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) map).entrySet()) {
+                writer.writeName(entry.getKey().toString());
+                writeElement(writer, value, entry.getValue(), registry, context);
+            }
+            writer.writeEndDocument();
+        }
+
+        @Override
+        protected Object decodeValue(BsonReader reader, CodecRegistry registry, DecoderContext context) {
+            Map<String, Object> values = factory.get();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                values.put(reader.readName(), value.decode(reader, registry, context));
+            }
+            reader.readEndDocument();
+            return values;
+        }
+    }
+
+    private static void writeElement(BsonWriter writer, FieldType type, Object value,
+                                     CodecRegistry registry, EncoderContext context) {
+        if (value == null) {
+            writer.writeNull();
+        } else {
+            type.encode(writer, value, registry, context);
+        }
+    }
+
+}
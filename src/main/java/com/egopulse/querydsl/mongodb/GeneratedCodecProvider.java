@@ -0,0 +1,76 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@code GeneratedCodecProvider} provides the codecs generated by {@link MongoAnnotationProcessor}
+ * next to the query types of {@code @Entity} and {@code @Embedded} classes.
+ * <p>
+ * The codec class is resolved once per type; codec registries cache the instances they obtain.
+ */
+public class GeneratedCodecProvider implements CodecProvider {
+
+    static final String CODEC_SUFFIX = "Codec";
+
+    private static final ConcurrentMap<Class<?>, Optional<Constructor<?>>> constructors = new ConcurrentHashMap<>();
+
+    /**
+     * Get the name of the codec generated for the given binary class name
+     *
+     * @param binaryName binary name of the entity class
+     * @return binary name of the codec class
+     */
+    static String getCodecName(String binaryName) {
+        return binaryName.replace('$', '_') + CODEC_SUFFIX;
+    }
+
+    /**
+     * Add the generated codecs to the given registry, ahead of its own codecs
+     *
+     * @param registry registry of the database
+     * @return combined registry
+     */
+    static CodecRegistry withGeneratedCodecs(CodecRegistry registry) {
+        return CodecRegistries.fromRegistries(CodecRegistries.fromProviders(new GeneratedCodecProvider()), registry);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        Optional<Constructor<?>> constructor = constructors.computeIfAbsent(clazz, GeneratedCodecProvider::findConstructor);
+        if (!constructor.isPresent()) {
+            return null;
+        }
+        try {
+            return (Codec<T>) constructor.get().newInstance(registry);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new CodecConfigurationException("Unable to create codec for " + clazz.getName(), e);
+        }
+    }
+
+    private static Optional<Constructor<?>> findConstructor(Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.isArray() || clazz.getClassLoader() == null) {
+            return Optional.empty();
+        }
+        try {
+            Class<?> codecClass = Class.forName(getCodecName(clazz.getName()), true, clazz.getClassLoader());
+            if (!Codec.class.isAssignableFrom(codecClass)) {
+                return Optional.empty();
+            }
+            return Optional.of(codecClass.getConstructor(CodecRegistry.class));
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return Optional.empty();
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.rx.client.MongoDatabase;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code IndexAdvisor} suggests compound indexes for the recorded queries and compares them with the existing
+ * indexes.
+ * <pre>
+ * IndexAdvisor advisor = new IndexAdvisor(database);
+ * MongoQuery.forDatabase(database).metrics(advisor)...
+ * ...
+ * advisor.advise("user").subscribe(report -&gt; {
+ *     for (IndexSuggestion missing : report.getMissing()) {
+ *         System.out.println("missing " + missing);
+ *     }
+ * });
+ * </pre>
+ * The suggestions follow the equality, sort, range rule: fields compared for equality ({@code $eq}, {@code $in},
+ * {@code $all}, {@code $elemMatch}) first, then the sort keys, then fields compared with ranges, {@code $ne},
+ * {@code $nin}, {@code $exists} or regular expressions. Each branch of an {@code $or} gets its own suggestion,
+ * up to {@value #MAX_BRANCHES} branches per query, the queries with more are logged and counted in the report.
+ * The filter and sort of a query shape are analyzed once, later executions of the shape are only counted.
+ */
+public class IndexAdvisor implements QueryMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexAdvisor.class);
+
+    static final int MAX_BRANCHES = 16;
+
+    private static final String ID_INDEX = "_id_";
+
+    private static final List<String> PARTIAL_INDEX_OPTIONS = Arrays.asList(
+            "sparse", "partialFilterExpression", "collation");
+
+    private static final Set<String> EQUALITY_OPERATORS = new HashSet<String>(Arrays.asList(
+            "$eq", "$in", "$all", "$elemMatch"));
+
+    private static final Set<String> RANGE_OPERATORS = new HashSet<String>(Arrays.asList(
+            "$gt", "$gte", "$lt", "$lte", "$ne", "$nin", "$exists", "$regex", "$options", "$not", "$size", "$type",
+            "$mod"));
+
+    private final MongoDatabase database;
+
+    private final CodecRegistry codecRegistry;
+
+    private final Map<String, List<IndexSuggestion>> shapes = new ConcurrentHashMap<String, List<IndexSuggestion>>();
+
+    private final Map<String, Map<IndexSuggestion, IndexSuggestion>> suggestions
+            = new ConcurrentHashMap<String, Map<IndexSuggestion, IndexSuggestion>>();
+
+    private final Map<String, AtomicLong> truncated = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param database database the recorded queries run on
+     */
+    public IndexAdvisor(MongoDatabase database) {
+        this.database = database;
+        this.codecRegistry = database.getCodecRegistry();
+    }
+
+    @Override
+    public void record(QueryEvent event) {
+        List<IndexSuggestion> served;
+        if (event.getShape().equals(QueryEvent.UNKNOWN_SHAPE)) {
+            served = suggest(event.getCollection(), event.getQuery());
+        } else {
+            String key = event.getCollection() + ' ' + event.getShape();
+            served = shapes.get(key);
+            if (served == null) {
+                served = suggest(event.getCollection(), event.getQuery());
+                shapes.put(key, served);
+            }
+        }
+        for (IndexSuggestion suggestion : served) {
+            suggestion.recorded();
+        }
+    }
+
+    private List<IndexSuggestion> suggest(String collection, SerializedQuery query) {
+        Map<IndexSuggestion, IndexSuggestion> collectionSuggestions = suggestions.get(collection);
+        if (collectionSuggestions == null) {
+            suggestions.putIfAbsent(collection, new ConcurrentHashMap<IndexSuggestion, IndexSuggestion>());
+            collectionSuggestions = suggestions.get(collection);
+        }
+        BsonDocument sort = render(query.getSort());
+        BsonDocument filter = render(query.getFilter());
+        List<Branch> branches = analyze(filter);
+        if (branches.stream().anyMatch(branch -> branch.truncated)) {
+            logger.warn("Only {} branches of a query on {} were analyzed: {}", MAX_BRANCHES, collection,
+                    filter.toJson());
+            truncated.computeIfAbsent(collection, name -> new AtomicLong()).incrementAndGet();
+        }
+        List<IndexSuggestion> served = new ArrayList<IndexSuggestion>();
+        for (Branch branch : branches) {
+            IndexSuggestion suggestion = new IndexSuggestion(branch.equality, sort, branch.range);
+            if (suggestion.isEmpty()) {
+                continue;
+            }
+            IndexSuggestion existing = collectionSuggestions.putIfAbsent(suggestion, suggestion);
+            served.add(existing != null ? existing : suggestion);
+        }
+        return served;
+    }
+
+    private BsonDocument render(@Nullable Bson bson) {
+        return bson == null ? new BsonDocument() : bson.toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+    /**
+     * Split a filter into the equality and range fields of each {@code $or} branch
+     */
+    static List<Branch> analyze(BsonDocument filter) {
+        List<Branch> branches = Collections.singletonList(new Branch());
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals("$and")) {
+                for (BsonValue condition : entry.getValue().asArray()) {
+                    branches = combine(branches, analyze(condition.asDocument()));
+                }
+            } else if (key.equals("$or")) {
+                List<Branch> alternatives = new ArrayList<Branch>();
+                for (BsonValue condition : entry.getValue().asArray()) {
+                    alternatives.addAll(analyze(condition.asDocument()));
+                }
+                branches = combine(branches, alternatives);
+            } else if (!key.startsWith("$")) {
+                // $nor, $text, $where and $comment can't use the index bounds of a field
+                Branch field = new Branch();
+                if (isEquality(entry.getValue())) {
+                    field.equality.add(key);
+                } else {
+                    field.range.add(key);
+                }
+                branches = combine(branches, Collections.singletonList(field));
+            }
+        }
+        return branches;
+    }
+
+    private static boolean isEquality(BsonValue value) {
+        if (value.isRegularExpression()) {
+            return false;
+        } else if (!value.isDocument() || value.asDocument().isEmpty()
+                || !value.asDocument().getFirstKey().startsWith("$")) {
+            return true;
+        }
+        boolean equality = false;
+        for (String operator : value.asDocument().keySet()) {
+            if (EQUALITY_OPERATORS.contains(operator)) {
+                equality = true;
+            } else if (!RANGE_OPERATORS.contains(operator)) {
+                // geo and other operators the advisor doesn't know, treat as range to keep them last
+                return false;
+            }
+        }
+        return equality;
+    }
+
+    private static List<Branch> combine(List<Branch> branches, List<Branch> conditions) {
+        List<Branch> combined = new ArrayList<Branch>();
+        for (Branch branch : branches) {
+            for (Branch condition : conditions) {
+                if (combined.size() == MAX_BRANCHES) {
+                    for (Branch analyzed : combined) {
+                        analyzed.truncated = true;
+                    }
+                    return combined;
+                }
+                combined.add(branch.and(condition));
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Compare the suggestions of the recorded queries on a collection with its indexes
+     *
+     * @param collection collection name
+     * @return report of the collection
+     */
+    public Observable<IndexReport> advise(String collection) {
+        Map<IndexSuggestion, IndexSuggestion> collectionSuggestions = suggestions.get(collection);
+        List<IndexSuggestion> suggested = collectionSuggestions == null ? new ArrayList<IndexSuggestion>()
+                : new ArrayList<IndexSuggestion>(collectionSuggestions.values());
+        suggested.sort(Comparator.comparingLong(IndexSuggestion::getQueryCount).reversed());
+        AtomicLong truncatedQueries = truncated.get(collection);
+        long truncatedCount = truncatedQueries == null ? 0 : truncatedQueries.get();
+        return database.getCollection(collection).listIndexes(BsonDocument.class).toObservable()
+                .toList()
+                .map(indexes -> report(collection, suggested, indexes, truncatedCount));
+    }
+
+    /**
+     * Compare the suggestions of the recorded queries with the indexes of all recorded collections
+     *
+     * @return reports, one per collection
+     */
+    public Observable<IndexReport> adviseAll() {
+        return Observable.from(new ArrayList<String>(suggestions.keySet()))
+                .concatMap(this::advise);
+    }
+
+    private static IndexReport report(String collection, List<IndexSuggestion> suggested, List<BsonDocument> indexes,
+                                      long truncatedQueries) {
+        List<IndexSuggestion> missing = new ArrayList<IndexSuggestion>();
+        for (IndexSuggestion suggestion : suggested) {
+            boolean served = false;
+            for (BsonDocument index : indexes) {
+                if (suggestion.isServedBy(index.getDocument("key"))) {
+                    served = true;
+                    break;
+                }
+            }
+            if (!served) {
+                missing.add(suggestion);
+            }
+        }
+        List<BsonDocument> redundant = new ArrayList<BsonDocument>();
+        for (BsonDocument index : indexes) {
+            if (!isDroppable(index)) {
+                continue;
+            }
+            for (BsonDocument other : indexes) {
+                if (other != index && coversAll(other)
+                        && isPrefix(index.getDocument("key"), other.getDocument("key"))) {
+                    redundant.add(index);
+                    break;
+                }
+            }
+        }
+        return new IndexReport(collection, suggested, missing, redundant, truncatedQueries);
+    }
+
+    /**
+     * Check if the index does nothing but serve queries, unlike the {@code _id} index and unique and TTL indexes
+     */
+    private static boolean isDroppable(BsonDocument index) {
+        return !index.getString("name", new BsonString("")).getValue().equals(ID_INDEX)
+                && !index.getBoolean("unique", BsonBoolean.FALSE).getValue()
+                && !index.containsKey("expireAfterSeconds")
+                && coversAll(index);
+    }
+
+    /**
+     * Check if the index holds all documents in the default collation, unlike sparse, partial and collated indexes
+     */
+    private static boolean coversAll(BsonDocument index) {
+        for (String option : PARTIAL_INDEX_OPTIONS) {
+            if (index.containsKey(option)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the keys are a strict prefix of other keys, with equal directions
+     */
+    static boolean isPrefix(BsonDocument keys, BsonDocument other) {
+        if (keys.size() >= other.size()) {
+            return false;
+        }
+        List<Map.Entry<String, BsonValue>> otherKeys = new ArrayList<Map.Entry<String, BsonValue>>(other.entrySet());
+        int position = 0;
+        for (Map.Entry<String, BsonValue> key : keys.entrySet()) {
+            if (!key.equals(otherKeys.get(position++))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Discard all recorded queries
+     */
+    public void reset() {
+        shapes.clear();
+        suggestions.clear();
+        truncated.clear();
+    }
+
+    static final class Branch {
+
+        final Set<String> equality = new LinkedHashSet<String>();
+
+        final Set<String> range = new LinkedHashSet<String>();
+
+        boolean truncated;
+
+        Branch and(Branch other) {
+            Branch combined = new Branch();
+            combined.truncated = truncated || other.truncated;
+            combined.equality.addAll(equality);
+            combined.equality.addAll(other.equality);
+            combined.range.addAll(range);
+            combined.range.addAll(other.range);
+            return combined;
+        }
+
+    }
+
+}
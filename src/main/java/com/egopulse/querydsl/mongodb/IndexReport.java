@@ -0,0 +1,70 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.BsonDocument;
+
+import java.util.List;
+
+/**
+ * {@code IndexReport} compares the indexes suggested for the recorded queries of a collection with its existing
+ * indexes, see {@link IndexAdvisor}.
+ */
+public final class IndexReport {
+
+    private final String collection;
+
+    private final List<IndexSuggestion> suggested;
+
+    private final List<IndexSuggestion> missing;
+
+    private final List<BsonDocument> redundant;
+
+    private final long truncatedQueries;
+
+    IndexReport(String collection, List<IndexSuggestion> suggested, List<IndexSuggestion> missing,
+                List<BsonDocument> redundant, long truncatedQueries) {
+        this.collection = collection;
+        this.suggested = suggested;
+        this.missing = missing;
+        this.redundant = redundant;
+        this.truncatedQueries = truncatedQueries;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return indexes serving the recorded queries, the ones serving most queries first
+     */
+    public List<IndexSuggestion> getSuggested() {
+        return suggested;
+    }
+
+    /**
+     * @return suggested indexes not served by an existing index
+     */
+    public List<IndexSuggestion> getMissing() {
+        return missing;
+    }
+
+    /**
+     * @return existing indexes whose keys are a prefix of another index, without the {@code _id} index and
+     * unique, sparse, partial, TTL and collated indexes
+     */
+    public List<BsonDocument> getRedundant() {
+        return redundant;
+    }
+
+    /**
+     * @return number of recorded query shapes with more {@code $or} branches than were analyzed
+     */
+    public long getTruncatedQueries() {
+        return truncatedQueries;
+    }
+
+    @Override
+    public String toString() {
+        return collection + ": missing " + missing + ", redundant " + redundant;
+    }
+
+}
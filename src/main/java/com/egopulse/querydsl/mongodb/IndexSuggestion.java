@@ -0,0 +1,137 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code IndexSuggestion} is a compound index serving a query shape, following the equality, sort, range rule:
+ * fields compared for equality first, then the sort keys, then fields compared with ranges or regular expressions.
+ */
+public final class IndexSuggestion {
+
+    private final Set<String> equality;
+
+    private final BsonDocument sort;
+
+    private final Set<String> range;
+
+    private final AtomicLong queries = new AtomicLong();
+
+    IndexSuggestion(Set<String> equality, BsonDocument sort, Set<String> range) {
+        this.equality = Collections.unmodifiableSet(new TreeSet<String>(equality));
+        BsonDocument sortKeys = new BsonDocument();
+        for (Map.Entry<String, BsonValue> entry : sort.entrySet()) {
+            if (!this.equality.contains(entry.getKey())) {
+                sortKeys.append(entry.getKey(), entry.getValue());
+            }
+        }
+        this.sort = sortKeys;
+        Set<String> rangeKeys = new TreeSet<String>(range);
+        rangeKeys.removeAll(this.equality);
+        rangeKeys.removeAll(sortKeys.keySet());
+        this.range = Collections.unmodifiableSet(rangeKeys);
+    }
+
+    void recorded() {
+        queries.incrementAndGet();
+    }
+
+    /**
+     * @return number of recorded queries served by this index
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return index keys, to be passed to {@code createIndex}
+     */
+    public BsonDocument getKeys() {
+        BsonDocument keys = new BsonDocument();
+        for (String field : equality) {
+            keys.append(field, new BsonInt32(1));
+        }
+        keys.putAll(sort);
+        for (String field : range) {
+            keys.append(field, new BsonInt32(1));
+        }
+        return keys;
+    }
+
+    boolean isEmpty() {
+        return equality.isEmpty() && sort.isEmpty() && range.isEmpty();
+    }
+
+    /**
+     * Check if the given index serves the queries of this suggestion as well. The equality fields may be in any
+     * order and direction, the sort keys must follow in order with all directions equal or all reversed,
+     * the range fields may follow in any order.
+     *
+     * @param index keys of an existing index
+     * @return true, if the index serves the queries
+     */
+    boolean isServedBy(BsonDocument index) {
+        List<Map.Entry<String, BsonValue>> keys = new ArrayList<Map.Entry<String, BsonValue>>(index.entrySet());
+        if (keys.size() < equality.size() + sort.size() + range.size()) {
+            return false;
+        }
+        int position = 0;
+        Set<String> prefix = new HashSet<String>();
+        for (; position < equality.size(); position++) {
+            prefix.add(keys.get(position).getKey());
+        }
+        if (!prefix.equals(equality)) {
+            return false;
+        }
+        Boolean reversed = null;
+        for (Map.Entry<String, BsonValue> sortKey : sort.entrySet()) {
+            Map.Entry<String, BsonValue> key = keys.get(position++);
+            if (!key.getKey().equals(sortKey.getKey()) || !key.getValue().isNumber()) {
+                return false;
+            }
+            boolean same = Integer.signum(key.getValue().asNumber().intValue())
+                    == Integer.signum(sortKey.getValue().asNumber().intValue());
+            if (reversed != null && reversed == same) {
+                return false;
+            }
+            reversed = !same;
+        }
+        prefix.clear();
+        for (int i = 0; i < range.size(); i++) {
+            prefix.add(keys.get(position++).getKey());
+        }
+        return prefix.equals(range);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof IndexSuggestion)) {
+            return false;
+        }
+        IndexSuggestion other = (IndexSuggestion) o;
+        return equality.equals(other.equality) && sort.equals(other.sort) && range.equals(other.range);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * equality.hashCode() + sort.hashCode()) + range.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getKeys().toJson() + " for " + queries.get() + " queries";
+    }
+
+}
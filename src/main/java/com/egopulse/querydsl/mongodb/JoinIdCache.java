@@ -0,0 +1,77 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code JoinIdCache} is a bounded LRU cache of the ids a join condition resolved to.
+ * <p>
+ * A cache is meant to be shared between queries, see {@link AsyncMongoQuery#joinIdCache(JoinIdCache)}.
+ * Entries expire after the given time, since changes to the joined collection are not tracked.
+ */
+public class JoinIdCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String, List<BsonValue>> ids;
+
+    public JoinIdCache(long expireAfterWrite, TimeUnit unit) {
+        this(DEFAULT_MAXIMUM_SIZE, expireAfterWrite, unit);
+    }
+
+    public JoinIdCache(long maximumSize, long expireAfterWrite, TimeUnit unit) {
+        this.ids = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite, unit)
+                .recordStats()
+                .build();
+    }
+
+    @Nullable
+    List<BsonValue> get(String collection, BsonDocument filter) {
+        return ids.getIfPresent(toKey(collection, filter));
+    }
+
+    void put(String collection, BsonDocument filter, List<BsonValue> ids) {
+        this.ids.put(toKey(collection, filter), ids);
+    }
+
+    private static String toKey(String collection, BsonDocument filter) {
+        return collection + ':' + filter.toJson();
+    }
+
+    /**
+     * @return number of lookups which found cached ids
+     */
+    public long getHitCount() {
+        return ids.stats().hitCount();
+    }
+
+    /**
+     * @return number of lookups which queried the joined collection
+     */
+    public long getMissCount() {
+        return ids.stats().missCount();
+    }
+
+    /**
+     * @return number of cached id lists
+     */
+    public long size() {
+        return ids.size();
+    }
+
+    /**
+     * Discard all cached ids
+     */
+    public void clear() {
+        ids.invalidateAll();
+    }
+
+}
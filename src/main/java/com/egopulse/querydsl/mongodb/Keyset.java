@@ -0,0 +1,150 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.types.ConstantImpl;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.ExpressionUtils;
+import com.querydsl.core.types.Ops;
+import com.querydsl.core.types.Order;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonException;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@code Keyset} holds the sort keys of a keyset paginated query and converts between the last row of a page,
+ * the continuation token and the seek predicate of the next page.
+ * <p>
+ * The order is made total by appending {@code _id} unless it's already sorted on. Sort keys must be present and
+ * non-null in every document, since documents can't be seeked past a missing value.
+ */
+final class Keyset {
+
+    static final String ID_FIELD = "_id";
+
+    private static final Expression<?> ID = ExpressionUtils.path(Object.class, ID_FIELD);
+
+    private final List<OrderSpecifier<?>> orderBy;
+
+    private final List<String> keys;
+
+    private Keyset(List<OrderSpecifier<?>> orderBy, List<String> keys) {
+        this.orderBy = orderBy;
+        this.keys = keys;
+    }
+
+    /**
+     * Create a keyset for the given order
+     *
+     * @param orderBy order specifiers of the query
+     * @param serializer serializer for the sort keys
+     * @return keyset
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Keyset of(List<OrderSpecifier<?>> orderBy, MongodbSerializer serializer) {
+        List<OrderSpecifier<?>> total = new ArrayList<OrderSpecifier<?>>(orderBy.size() + 1);
+        List<String> keys = new ArrayList<String>(orderBy.size() + 1);
+        for (OrderSpecifier<?> order : orderBy) {
+            String key = (String) serializer.handle(order.getTarget());
+            if (!keys.contains(key)) {
+                total.add(order);
+                keys.add(key);
+            }
+        }
+        if (!keys.contains(ID_FIELD)) {
+            total.add(new OrderSpecifier(Order.ASC, ID));
+            keys.add(ID_FIELD);
+        }
+        return new Keyset(Collections.unmodifiableList(total), Collections.unmodifiableList(keys));
+    }
+
+    /**
+     * @return order specifiers including the tiebreaker
+     */
+    List<OrderSpecifier<?>> getOrderBy() {
+        return orderBy;
+    }
+
+    /**
+     * Create the predicate matching the rows after the row the continuation was created from
+     *
+     * @param continuation continuation token
+     * @return seek predicate
+     */
+    Predicate seek(String continuation) {
+        List<BsonValue> values = decode(continuation);
+        Predicate seek = null;
+        for (int i = orderBy.size() - 1; i >= 0; i--) {
+            OrderSpecifier<?> order = orderBy.get(i);
+            Expression<?> value = ConstantImpl.create(values.get(i));
+            Predicate after = ExpressionUtils.predicate(order.isAscending() ? Ops.GT : Ops.LT, order.getTarget(), value);
+            seek = seek == null ? after : ExpressionUtils.or(after,
+                    ExpressionUtils.and(ExpressionUtils.predicate(Ops.EQ, order.getTarget(), value), seek));
+        }
+        return seek;
+    }
+
+    /**
+     * Create the continuation token for the rows after the given one
+     *
+     * @param last last row of a page
+     * @return continuation token
+     */
+    String continuation(BsonDocument last) {
+        BsonDocument values = new BsonDocument();
+        for (String key : keys) {
+            BsonValue value = getValue(last, key);
+            if (value == null || value.isNull()) {
+                throw new IllegalStateException("Sort key " + key + " is missing from " + last.toJson());
+            }
+            values.append(key, value);
+        }
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            new BsonDocumentCodec().encode(writer, values, EncoderContext.builder().build());
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.toByteArray());
+    }
+
+    private List<BsonValue> decode(String continuation) {
+        BsonDocument values;
+        List<String> names;
+        try {
+            values = new RawBsonDocument(Base64.getUrlDecoder().decode(continuation));
+            names = new ArrayList<String>(values.keySet());
+        } catch (IllegalArgumentException | BsonException e) {
+            throw new IllegalArgumentException("Invalid continuation " + continuation, e);
+        }
+        if (!names.equals(keys)) {
+            throw new IllegalArgumentException("Continuation doesn't match the sort keys " + keys);
+        }
+        return new ArrayList<BsonValue>(values.values());
+    }
+
+    @Nullable
+    static BsonValue getValue(BsonDocument document, String key) {
+        BsonValue value = document;
+        for (String name : key.split("\\.")) {
+            if (!value.isDocument()) {
+                return null;
+            }
+            value = value.asDocument().get(name);
+            if (value == null) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+}
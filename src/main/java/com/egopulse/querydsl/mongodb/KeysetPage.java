@@ -0,0 +1,47 @@
+package com.egopulse.querydsl.mongodb;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * {@code KeysetPage} is a page of results fetched with {@link AsyncMongoQuery#fetchPage(String, int, String)}.
+ *
+ * @param <T> result type
+ */
+public final class KeysetPage<T> {
+
+    private final List<T> results;
+
+    @Nullable
+    private final String continuation;
+
+    KeysetPage(List<T> results, @Nullable String continuation) {
+        this.results = results;
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return results of this page
+     */
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * Get the opaque token to fetch the next page with
+     *
+     * @return continuation token, or null if this is the last page
+     */
+    @Nullable
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * @return true, if there are more pages
+     */
+    public boolean hasNext() {
+        return continuation != null;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.querydsl.core.JoinExpression;
+import com.querydsl.core.QueryMetadata;
+import com.querydsl.core.QueryModifiers;
+import com.querydsl.core.types.Operation;
+import com.querydsl.core.types.ParamExpression;
+import com.querydsl.core.types.Path;
+import com.querydsl.core.types.PathMetadata;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * {@code LookupPipeline} compiles a query with joins into a single aggregation pipeline of
+ * {@code $match}, {@code $lookup}, {@code $match}, {@code $sort} and {@code $project} stages.
+ * <p>
+ * Joined documents are looked up into an array named after the join target with a {@value #ALIAS_PREFIX} prefix,
+ * which is excluded from the results of queries without a projection. The array isn't unwound, so a join over a
+ * collection of references keeps one row per root document: the join condition is matched with
+ * {@code $elemMatch} on the array, a join without a condition only requires the array to be non-empty.
+ * Excluding fields other than {@code _id} in {@code $project} needs MongoDB 3.4.
+ * The server can't look up DBRefs, so references must be stored as plain ids, e.g. with
+ * {@code @Reference(idOnly = true)}. Conditions on joined documents belong to the join, the where
+ * condition of the query is matched before the first lookup.
+ */
+final class LookupPipeline {
+
+    static final String ALIAS_PREFIX = "__";
+
+    private final QueryMetadata metadata;
+
+    private final Function<Class<?>, String> collectionNames;
+
+    private final LookupSerializer serializer;
+
+    LookupPipeline(QueryMetadata metadata, Function<Class<?>, String> collectionNames) {
+        this.metadata = metadata;
+        this.collectionNames = collectionNames;
+        this.serializer = new LookupSerializer(metadata.getParams());
+    }
+
+    /**
+     * Create the stages matching the documents of the query
+     *
+     * @return pipeline stages
+     */
+    List<Bson> filter() {
+        List<Bson> pipeline = new ArrayList<Bson>();
+        if (metadata.getWhere() != null) {
+            pipeline.add(Aggregates.match((Bson) serializer.handle(metadata.getWhere())));
+        }
+        for (JoinExpression join : metadata.getJoins()) {
+            Path<?> source = (Path<?>) ((Operation<?>) join.getTarget()).getArg(0);
+            Path<?> target = (Path<?>) ((Operation<?>) join.getTarget()).getArg(1);
+            String alias = ALIAS_PREFIX + target.getMetadata().getName();
+            pipeline.add(Aggregates.lookup(collectionNames.apply(target.getType()), serializer.visit(source, null),
+                    "_id", alias));
+            // serialized before the target is aliased, so that its paths are relative to the joined documents
+            pipeline.add(Aggregates.match(join.getCondition() != null
+                    ? Filters.elemMatch(alias, (Bson) serializer.handle(join.getCondition()))
+                    : Filters.ne(alias, Collections.emptyList())));
+            serializer.aliases.put(target, alias);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Create the stages matching, ordering, paging and projecting the documents of the query
+     *
+     * @return pipeline stages
+     */
+    List<Bson> find() {
+        List<Bson> pipeline = filter();
+        if (!metadata.getOrderBy().isEmpty()) {
+            pipeline.add(Aggregates.sort(serializer.toSort(metadata.getOrderBy())));
+        }
+        QueryModifiers modifiers = metadata.getModifiers();
+        if (modifiers.getOffset() != null) {
+            pipeline.add(Aggregates.skip(modifiers.getOffset().intValue()));
+        }
+        if (modifiers.getLimit() != null) {
+            pipeline.add(Aggregates.limit(modifiers.getLimit().intValue()));
+        }
+        Bson projection = serializer.toProjection(metadata.getProjection());
+        if (projection != null) {
+            pipeline.add(Aggregates.project(projection));
+        } else {
+            // return the documents as client-side joins do, without the joined documents
+            pipeline.add(Aggregates.project(Projections.exclude(new ArrayList<String>(serializer.aliases.values()))));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Serializer which prefixes the paths of join targets with their alias
+     */
+    private static final class LookupSerializer extends MongodbSerializer {
+
+        private final Map<Path<?>, String> aliases = new HashMap<Path<?>, String>();
+
+        LookupSerializer(Map<ParamExpression<?>, Object> params) {
+            super(params);
+        }
+
+        @Override
+        protected String getKeyForPath(Path<?> expr, PathMetadata metadata) {
+            String key = super.getKeyForPath(expr, metadata);
+            String alias = metadata.getParent() != null ? aliases.get(metadata.getParent()) : null;
+            return alias != null ? alias + "." + key : key;
+        }
+    }
+
+}
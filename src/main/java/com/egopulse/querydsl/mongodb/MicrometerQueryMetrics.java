@@ -0,0 +1,60 @@
+package com.egopulse.querydsl.mongodb;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code MicrometerQueryMetrics} records query events into a Micrometer {@link MeterRegistry}.
+ * <p>
+ * Meters are tagged with the collection, the operation and the outcome, and optionally with the query shape.
+ * Shapes are bounded by the queries of the application, but can still be too many for some registries.
+ * Micrometer is an optional dependency, this class can only be used if it's on the classpath.
+ */
+public class MicrometerQueryMetrics implements QueryMetrics {
+
+    public static final String PREFIX = "mongodb.query";
+
+    private final MeterRegistry registry;
+
+    private final boolean shapeTags;
+
+    public MicrometerQueryMetrics(MeterRegistry registry) {
+        this(registry, false);
+    }
+
+    /**
+     * @param registry meter registry
+     * @param shapeTags true to tag meters with the query shape
+     */
+    public MicrometerQueryMetrics(MeterRegistry registry, boolean shapeTags) {
+        this.registry = registry;
+        this.shapeTags = shapeTags;
+    }
+
+    @Override
+    public void record(QueryEvent event) {
+        Tags tags = Tags.of("collection", event.getCollection(),
+                "operation", event.getOperation(),
+                "outcome", event.getError() == null ? "success" : "error");
+        if (shapeTags) {
+            tags = tags.and("shape", event.getShape());
+        }
+        Timer.builder(PREFIX + ".latency").tags(tags).register(registry)
+                .record(event.getTotalTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        Timer.builder(PREFIX + ".serialization").tags(tags).register(registry)
+                .record(event.getSerializationTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        if (event.getDocuments() > 0) {
+            Timer.builder(PREFIX + ".first.document").tags(tags).register(registry)
+                    .record(event.getFirstDocumentTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+        DistributionSummary.builder(PREFIX + ".documents").tags(tags).register(registry)
+                .record(event.getDocuments());
+        DistributionSummary.builder(PREFIX + ".bytes").baseUnit("bytes").tags(tags).register(registry)
+                .record(event.getBytes());
+    }
+
+}
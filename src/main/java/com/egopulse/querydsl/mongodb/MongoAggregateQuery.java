@@ -0,0 +1,289 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import com.querydsl.core.DefaultQueryMetadata;
+import com.querydsl.core.QueryMetadata;
+import com.querydsl.core.QueryModifiers;
+import com.querydsl.core.SimpleQuery;
+import com.querydsl.core.Tuple;
+import com.querydsl.core.support.QueryMixin;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.Order;
+import com.querydsl.core.types.ParamExpression;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.Projections;
+import com.querydsl.core.types.QTuple;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code MongoAggregateQuery} is a grouping query which runs on the server as an aggregation pipeline
+ * of {@code $match}, {@code $group}, {@code $sort}, {@code $skip} and {@code $limit} stages.
+ * <p>
+ * The projection may contain group by expressions and {@code count()}, {@code sum()}, {@code avg()},
+ * {@code min()} and {@code max()} aggregates. Results are returned as tuples of the projection.
+ * <pre>
+ * MongoAggregateQuery.forDatabase(database)
+ *     .where(user.age.gt(18))
+ *     .groupBy(user.lastName)
+ *     .orderBy(user.age.avg().desc())
+ *     .fetchFrom("user", user.lastName, user.age.avg(), user.count());
+ * </pre>
+ */
+public class MongoAggregateQuery implements SimpleQuery<MongoAggregateQuery> {
+
+    private static final String ID_FIELD = "_id";
+
+    private final QueryMixin<MongoAggregateQuery> queryMixin;
+
+    private final MongoDatabase database;
+
+    private QueryMetrics metrics = QueryMetrics.NONE;
+
+    protected MongoAggregateQuery(MongoDatabase database) {
+        this.database = database;
+        this.queryMixin = new QueryMixin<MongoAggregateQuery>(this, new DefaultQueryMetadata(), false);
+    }
+
+    public static MongoAggregateQuery forDatabase(MongoDatabase database) {
+        return new MongoAggregateQuery(database);
+    }
+
+    @Override
+    public MongoAggregateQuery distinct() {
+        return queryMixin.distinct();
+    }
+
+    @Override
+    public MongoAggregateQuery where(Predicate... e) {
+        return queryMixin.where(e);
+    }
+
+    public MongoAggregateQuery groupBy(Expression<?>... e) {
+        return queryMixin.groupBy(e);
+    }
+
+    @Override
+    public MongoAggregateQuery limit(long limit) {
+        return queryMixin.limit(limit);
+    }
+
+    @Override
+    public MongoAggregateQuery offset(long offset) {
+        return queryMixin.offset(offset);
+    }
+
+    @Override
+    public MongoAggregateQuery restrict(QueryModifiers modifiers) {
+        return queryMixin.restrict(modifiers);
+    }
+
+    @Override
+    public MongoAggregateQuery orderBy(OrderSpecifier<?>... o) {
+        return queryMixin.orderBy(o);
+    }
+
+    @Override
+    public <T> MongoAggregateQuery set(ParamExpression<T> param, T value) {
+        return queryMixin.set(param, value);
+    }
+
+    /**
+     * Record each execution of the pipeline into the given metrics as an {@code aggregate} operation, with the
+     * {@code $match} and {@code $sort} stages as its query
+     *
+     * @param metrics query metrics
+     * @return the current object
+     */
+    public MongoAggregateQuery metrics(QueryMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Fetch the groups
+     *
+     * @param collection collection name
+     * @param projection group by expressions and aggregates to return
+     * @return results
+     */
+    public Observable<List<Tuple>> fetchFrom(String collection, Expression<?>... projection) {
+        return streamFrom(collection, projection).toList();
+    }
+
+    /**
+     * Stream the groups
+     *
+     * @param collection collection name
+     * @param projection group by expressions and aggregates to return
+     * @return results
+     */
+    public Observable<Tuple> streamFrom(String collection, Expression<?>... projection) {
+        QTuple tuple = Projections.tuple(projection);
+        QueryMetadata metadata = queryMixin.getMetadata();
+        long start = System.nanoTime();
+        Map<Expression<?>, String> fields = getFields(metadata, Arrays.asList(projection));
+        List<Bson> pipeline = createPipeline(metadata, fields);
+        return measured(collection, pipeline, System.nanoTime() - start)
+                .map(document -> {
+                    Object[] values = new Object[projection.length];
+                    for (int i = 0; i < projection.length; i++) {
+                        values[i] = convert(getValue(document, fields.get(projection[i])), projection[i].getType());
+                    }
+                    return tuple.newInstance(values);
+                });
+    }
+
+    private Observable<Document> measured(String collection, List<Bson> pipeline, long serializationNanos) {
+        MongoCollection<Document> documents = database.getCollection(collection);
+        if (metrics == QueryMetrics.NONE) {
+            return documents.aggregate(pipeline).toObservable();
+        }
+        QueryMetadata metadata = queryMixin.getMetadata();
+        QueryShape shape = QueryShape.of(metadata.getWhere(), Collections.<OrderSpecifier<?>>emptyList(), null);
+        Bson filter = new BsonDocument();
+        Bson sort = new BsonDocument();
+        for (Bson stage : pipeline) {
+            BsonDocument rendered = stage.toBsonDocument(BsonDocument.class, documents.getCodecRegistry());
+            if (rendered.containsKey("$match")) {
+                filter = rendered.getDocument("$match");
+            } else if (rendered.containsKey("$sort")) {
+                sort = rendered.getDocument("$sort");
+            }
+        }
+        QueryMeasurement<Document> measurement = new QueryMeasurement<Document>(
+                documents.getCodecRegistry().get(Document.class), metrics, collection, "aggregate",
+                shape != null ? shape.getKey() : QueryEvent.UNKNOWN_SHAPE, serializationNanos,
+                new SerializedQuery(filter, sort, null), metadata.getModifiers());
+        return measurement.measure(counting -> documents.withCodecRegistry(CodecRegistries.fromRegistries(
+                CodecRegistries.fromCodecs(counting), documents.getCodecRegistry()))
+                .aggregate(pipeline)
+                .toObservable());
+    }
+
+    /**
+     * Create the pipeline of this query
+     *
+     * @param projection group by expressions and aggregates to return
+     * @return pipeline stages
+     */
+    public List<Bson> toPipeline(Expression<?>... projection) {
+        QueryMetadata metadata = queryMixin.getMetadata();
+        return createPipeline(metadata, getFields(metadata, Arrays.asList(projection)));
+    }
+
+    /**
+     * Get the output fields of the group by expressions, the projection and the order
+     */
+    private static Map<Expression<?>, String> getFields(QueryMetadata metadata, List<Expression<?>> projection) {
+        Map<Expression<?>, String> fields = new LinkedHashMap<Expression<?>, String>();
+        List<Expression<?>> groupBy = metadata.getGroupBy();
+        for (int i = 0; i < groupBy.size(); i++) {
+            fields.put(groupBy.get(i), ID_FIELD + ".g" + i);
+        }
+        List<Expression<?>> outputs = new ArrayList<Expression<?>>(projection);
+        for (OrderSpecifier<?> order : metadata.getOrderBy()) {
+            outputs.add(order.getTarget());
+        }
+        int aggregates = 0;
+        for (Expression<?> output : outputs) {
+            if (!fields.containsKey(output)) {
+                fields.put(output, "a" + aggregates++);
+            }
+        }
+        return fields;
+    }
+
+    private List<Bson> createPipeline(QueryMetadata metadata, Map<Expression<?>, String> fields) {
+        MongodbSerializer serializer = new MongodbSerializer(metadata.getParams());
+        List<Bson> pipeline = new ArrayList<Bson>();
+        if (metadata.getWhere() != null) {
+            pipeline.add(Aggregates.match((Bson) serializer.handle(metadata.getWhere())));
+        }
+        Document id = null;
+        List<BsonField> accumulators = new ArrayList<BsonField>();
+        for (Map.Entry<Expression<?>, String> field : fields.entrySet()) {
+            if (field.getValue().startsWith(ID_FIELD)) {
+                if (id == null) {
+                    id = new Document();
+                }
+                id.append(field.getValue().substring(ID_FIELD.length() + 1), "$" + serializer.handle(field.getKey()));
+            } else {
+                accumulators.add(serializer.toAccumulator(field.getValue(), field.getKey()));
+            }
+        }
+        pipeline.add(Aggregates.group(id, accumulators));
+        if (!metadata.getOrderBy().isEmpty()) {
+            Document sort = new Document();
+            for (OrderSpecifier<?> order : metadata.getOrderBy()) {
+                sort.append(fields.get(order.getTarget()), order.getOrder() == Order.ASC ? 1 : -1);
+            }
+            pipeline.add(Aggregates.sort(sort));
+        }
+        QueryModifiers modifiers = metadata.getModifiers();
+        if (modifiers.getOffset() != null) {
+            pipeline.add(Aggregates.skip(modifiers.getOffset().intValue()));
+        }
+        if (modifiers.getLimit() != null) {
+            pipeline.add(Aggregates.limit(modifiers.getLimit().intValue()));
+        }
+        return pipeline;
+    }
+
+    private static Object getValue(Document document, String field) {
+        if (field.startsWith(ID_FIELD)) {
+            Document id = (Document) document.get(ID_FIELD);
+            return id != null ? id.get(field.substring(ID_FIELD.length() + 1)) : null;
+        }
+        return document.get(field);
+    }
+
+    /**
+     * Convert the given value to the type of the expression it was computed for
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        } else if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == Long.class) {
+                return number.longValue();
+            } else if (type == Integer.class) {
+                return number.intValue();
+            } else if (type == Double.class) {
+                return number.doubleValue();
+            } else if (type == Float.class) {
+                return number.floatValue();
+            } else if (type == Short.class) {
+                return number.shortValue();
+            } else if (type == Byte.class) {
+                return number.byteValue();
+            } else if (type == BigDecimal.class) {
+                return new BigDecimal(number.toString());
+            } else if (type == BigInteger.class) {
+                return BigInteger.valueOf(number.longValue());
+            }
+        } else if (value instanceof String && type.isEnum()) {
+            return Enum.valueOf((Class) type, (String) value);
+        }
+        return value;
+    }
+
+}
@@ -9,16 +9,36 @@ import org.mongodb.morphia.annotations.Embedded;
 import org.mongodb.morphia.annotations.Entity;
 import org.mongodb.morphia.annotations.Transient;
 
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.element.TypeElement;
 import java.util.Collections;
+import java.util.Set;
 
 @SupportedAnnotationTypes({"com.querydsl.core.annotations.*", "org.mongodb.morphia.annotations.*", "com.egopulse.querydsl.mongodb.*"})
 public class MongoAnnotationProcessor extends AbstractQuerydslProcessor {
 
+    private CodecGenerator codecGenerator;
+
     public MongoAnnotationProcessor() {
     }
 
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.codecGenerator = new CodecGenerator(processingEnv);
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        boolean claimed = super.process(annotations, roundEnv);
+        if (!roundEnv.processingOver()) {
+            codecGenerator.generate(roundEnv);
+        }
+        return claimed;
+    }
+
     protected Configuration createConfiguration(RoundEnvironment roundEnv) {
         Class entities = QueryEntities.class;
         Class entity = Entity.class;
@@ -6,7 +6,7 @@ import org.bson.Document;
 public class MongoQuery extends AsyncMongoQuery<Document, MongoQuery> {
 
     protected MongoQuery(MongoDatabase database) {
-        super(database);
+        super(database, Document.class);
     }
 
     public static MongoQuery forDatabase(MongoDatabase database) {
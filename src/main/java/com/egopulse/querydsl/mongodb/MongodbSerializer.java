@@ -13,12 +13,22 @@
  */
 package com.egopulse.querydsl.mongodb;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.BsonField;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Sorts;
 import org.bson.*;
@@ -35,6 +45,27 @@ import com.querydsl.core.types.*;
  */
 public class MongodbSerializer implements Visitor<Object, Void> {
 
+    static final Set<Ops> TEXT_MATCHING_OPS = Collections.unmodifiableSet(EnumSet.of(
+            Ops.STARTS_WITH, Ops.STARTS_WITH_IC, Ops.ENDS_WITH, Ops.ENDS_WITH_IC, Ops.EQ_IGNORE_CASE,
+            Ops.STRING_CONTAINS, Ops.STRING_CONTAINS_IC, Ops.MATCHES, Ops.MATCHES_IC, Ops.LIKE));
+
+    private static final Cache<String, Pattern> patterns = CacheBuilder.newBuilder().maximumSize(1024).build();
+
+    private final Map<ParamExpression<?>, Object> params;
+
+    public MongodbSerializer() {
+        this(Collections.<ParamExpression<?>, Object>emptyMap());
+    }
+
+    /**
+     * Create a serializer which binds the given parameter values
+     *
+     * @param params parameter bindings
+     */
+    public MongodbSerializer(Map<ParamExpression<?>, Object> params) {
+        this.params = params;
+    }
+
     public Object handle(Expression<?> expression) {
         // Delegate to visit operation only
         return expression.accept(this, null);
@@ -52,6 +83,59 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         return Sorts.orderBy(bsons);
     }
 
+    public Bson toProjection(Expression<?> projection) {
+        if (projection instanceof FactoryExpression) {
+            Document obj = new Document();
+            for (Object expr : ((FactoryExpression<?>) projection).getArgs()) {
+                if (expr instanceof Expression) {
+                    obj.put((String) handle((Expression<?>) expr), 1);
+                }
+            }
+            return obj;
+        }
+        return null;
+    }
+
+    /**
+     * Create the accumulator computing the given aggregate into the given field. {@code count()} of a property
+     * counts the documents of the group in which the property is not null, of an entity all documents of the group.
+     *
+     * @param field output field
+     * @param aggregate count, sum, avg, min or max operation
+     * @return accumulator
+     */
+    public BsonField toAccumulator(String field, Expression<?> aggregate) {
+        Operator op = aggregate instanceof Operation<?> ? ((Operation<?>) aggregate).getOperator() : null;
+        if (op == Ops.AggOps.COUNT_ALL_AGG || (op == Ops.AggOps.COUNT_AGG && isRoot(((Operation<?>) aggregate).getArg(0)))) {
+            return Accumulators.sum(field, 1);
+        } else if (op == Ops.AggOps.COUNT_AGG || op == Ops.AggOps.SUM_AGG || op == Ops.AggOps.AVG_AGG
+                || op == Ops.AggOps.MIN_AGG || op == Ops.AggOps.MAX_AGG) {
+            String key = "$" + handle(((Operation<?>) aggregate).getArg(0));
+            if (op == Ops.AggOps.COUNT_AGG) {
+                return Accumulators.sum(field, new Document("$cond",
+                        Arrays.asList(new Document("$gt", Arrays.asList(key, null)), 1, 0)));
+            } else if (op == Ops.AggOps.SUM_AGG) {
+                return Accumulators.sum(field, key);
+            } else if (op == Ops.AggOps.AVG_AGG) {
+                return Accumulators.avg(field, key);
+            } else if (op == Ops.AggOps.MIN_AGG) {
+                return Accumulators.min(field, key);
+            } else {
+                return Accumulators.max(field, key);
+            }
+        }
+        throw new UnsupportedOperationException("Illegal aggregate " + aggregate);
+    }
+
+    @Override
+    public Object visit(ParamExpression<?> expr, Void context) {
+        if (!params.containsKey(expr)) {
+            throw new ParamNotSetException(expr);
+        }
+        Object value = params.get(expr);
+        return value instanceof Enum<?> ? ((Enum<?>) value).name() : value;
+    }
+
     @Override
     public Object visit(Constant<?> expr, Void context) {
         if (Enum.class.isAssignableFrom(expr.getType())) {
@@ -63,16 +147,81 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         }
     }
 
-    private String asDBKey(Operation<?> expr, int index) {
+    private static boolean isRoot(Expression<?> expr) {
+        return expr instanceof Path<?> && ((Path<?>) expr).getMetadata().getParent() == null;
+    }
+
+    static boolean isValue(Expression<?> expr) {
+        return expr instanceof Constant<?> || expr instanceof ParamExpression<?>;
+    }
+
+    String asDBKey(Operation<?> expr, int index) {
         return (String) asDBValue(expr, index);
     }
 
-    private Object asDBValue(Operation<?> expr, int index) {
+    Object asDBValue(Operation<?> expr, int index) {
         return expr.getArg(index).accept(this, null);
     }
 
-    private String regexValue(Operation<?> expr, int index) {
-        return Pattern.quote(expr.getArg(index).accept(this, null).toString());
+    /**
+     * Apply the given conversion to a serialized value
+     *
+     * @param value value as returned by the visitor
+     * @param conversion conversion to apply
+     * @return converted value
+     */
+    protected Object convert(Object value, Function<Object, ?> conversion) {
+        return conversion.apply(value);
+    }
+
+    /**
+     * Get the pattern of a text matching operation
+     *
+     * @param expr operation
+     * @return pattern, or null if the operation is not a text matching operation
+     */
+    Object toPattern(Operation<?> expr) {
+        Operator op = expr.getOperator();
+        if (op == Ops.STARTS_WITH) {
+            return regexValue(expr, 1, "^", "", 0);
+        } else if (op == Ops.STARTS_WITH_IC) {
+            return regexValue(expr, 1, "^", "", Pattern.CASE_INSENSITIVE);
+        } else if (op == Ops.ENDS_WITH) {
+            return regexValue(expr, 1, "", "$", 0);
+        } else if (op == Ops.ENDS_WITH_IC) {
+            return regexValue(expr, 1, "", "$", Pattern.CASE_INSENSITIVE);
+        } else if (op == Ops.EQ_IGNORE_CASE) {
+            return regexValue(expr, 1, "^", "$", Pattern.CASE_INSENSITIVE);
+        } else if (op == Ops.STRING_CONTAINS) {
+            return regexValue(expr, 1, ".*", ".*", 0);
+        } else if (op == Ops.STRING_CONTAINS_IC) {
+            return regexValue(expr, 1, ".*", ".*", Pattern.CASE_INSENSITIVE);
+        } else if (op == Ops.MATCHES) {
+            return convert(asDBValue(expr, 1), value -> compile(value.toString(), 0));
+        } else if (op == Ops.MATCHES_IC) {
+            return convert(asDBValue(expr, 1), value -> compile(value.toString(), Pattern.CASE_INSENSITIVE));
+        } else if (op == Ops.LIKE) {
+            return convert(asDBValue(expr, 1), value -> compile(
+                    ExpressionUtils.likeToRegex(ConstantImpl.create(value.toString())).toString(), 0));
+        }
+        return null;
+    }
+
+    private Object regexValue(Operation<?> expr, int index, String prefix, String suffix, int flags) {
+        return convert(asDBValue(expr, index), value -> compile(prefix + Pattern.quote(value.toString()) + suffix, flags));
+    }
+
+    private Bson regex(String key, Object pattern) {
+        // patterns of compiled plans are resolved at encoding time, the rendered filter is the same
+        return pattern instanceof Pattern ? Filters.regex(key, (Pattern) pattern) : Filters.eq(key, pattern);
+    }
+
+    protected static Pattern compile(String regex, int flags) {
+        try {
+            return patterns.get(flags + ":" + regex, () -> Pattern.compile(regex, flags));
+        } catch (ExecutionException e) {
+            throw new IllegalArgumentException(e.getCause());
+        }
     }
 
     protected Bson asDBObject(String key, BsonValue value) {
@@ -92,7 +241,7 @@ public class MongodbSerializer implements Visitor<Object, Void> {
     protected Bson handleEqSizeOperation(Operation<?> expr) {
         Operation<?> lhs = (Operation<?>) expr.getArg(0);
         if (lhs.getOperator() == Ops.COL_SIZE || lhs.getOperator() == Ops.ARRAY_SIZE) {
-            return Filters.size(asDBKey(lhs, 0), (Integer) asDBValue(expr, 1));
+            return Filters.size(asDBKey(lhs, 0), (Integer) ((Constant<?>) expr.getArg(1)).getConstant());
         } else { // Right hand must be number
             throw new UnsupportedOperationException("Illegal operation " + expr);
         }
@@ -165,54 +314,8 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         /**
          * Text matching operations
          */
-        else if (op == Ops.STARTS_WITH) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile("^" + regexValue(expr, 1)));
-
-        }
-
-        else if (op == Ops.STARTS_WITH_IC) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile("^" + regexValue(expr, 1), Pattern.CASE_INSENSITIVE));
-
-        }
-
-        else if (op == Ops.ENDS_WITH) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(regexValue(expr, 1) + "$"));
-
-        }
-
-        else if (op == Ops.ENDS_WITH_IC) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(regexValue(expr, 1) + "$", Pattern.CASE_INSENSITIVE));
-
-        }
-
-        else if (op == Ops.EQ_IGNORE_CASE) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile("^" + regexValue(expr, 1) + "$", Pattern.CASE_INSENSITIVE));
-
-        }
-
-        else if (op == Ops.STRING_CONTAINS) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(".*" + regexValue(expr, 1) + ".*"));
-
-        }
-
-        else if (op == Ops.STRING_CONTAINS_IC) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(".*" + regexValue(expr, 1) + ".*", Pattern.CASE_INSENSITIVE));
-
-        }
-
-        else if (op == Ops.MATCHES) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(asDBValue(expr, 1).toString()));
-        }
-
-        else if (op == Ops.MATCHES_IC) {
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(asDBValue(expr, 1).toString(), Pattern.CASE_INSENSITIVE));
-
-        }
-
-        else if (op == Ops.LIKE) {
-            String regex = ExpressionUtils.likeToRegex((Expression) expr.getArg(1)).toString();
-            return Filters.regex(asDBKey(expr, 0), Pattern.compile(regex));
-
+        else if (TEXT_MATCHING_OPS.contains(op)) {
+            return regex(asDBKey(expr, 0), toPattern(expr));
         }
 
         else if (op == Ops.BETWEEN) {
@@ -222,14 +325,15 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         else if (op == Ops.IN) {
             int constIndex = 0;
             int exprIndex = 1;
-            if (expr.getArg(1) instanceof Constant<?>) {
+            if (isValue(expr.getArg(1))) {
                 constIndex = 1;
                 exprIndex = 0;
             }
             if (Collection.class.isAssignableFrom(expr.getArg(constIndex).getType())) {
-                @SuppressWarnings("unchecked") //guarded by previous check
-                Collection<?> values = ((Constant<? extends Collection<?>>) expr.getArg(constIndex)).getConstant();
-                return Filters.in(asDBKey(expr, exprIndex), values);
+                Object values = asDBValue(expr, constIndex);
+                return values instanceof Collection
+                        ? Filters.in(asDBKey(expr, exprIndex), (Collection<?>) values)
+                        : Filters.eq(asDBKey(expr, exprIndex), new Document("$in", values));
             }
 
             /**
@@ -248,14 +352,15 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         else if (op == Ops.NOT_IN) {
             int constIndex = 0;
             int exprIndex = 1;
-            if (expr.getArg(1) instanceof Constant<?>) {
+            if (isValue(expr.getArg(1))) {
                 constIndex = 1;
                 exprIndex = 0;
             }
             if (Collection.class.isAssignableFrom(expr.getArg(constIndex).getType())) {
-                @SuppressWarnings("unchecked") //guarded by previous check
-                Collection<?> values = ((Constant<? extends Collection<?>>) expr.getArg(constIndex)).getConstant();
-                return Filters.nin(asDBKey(expr, exprIndex), values);
+                Object values = asDBValue(expr, constIndex);
+                return values instanceof Collection
+                        ? Filters.nin(asDBKey(expr, exprIndex), (Collection<?>) values)
+                        : Filters.eq(asDBKey(expr, exprIndex), new Document("$nin", values));
             } else {
                 throw new UnsupportedOperationException();
 //                Path<?> path = (Path<?>) expr.getArg(exprIndex);
@@ -367,11 +472,6 @@ public class MongodbSerializer implements Visitor<Object, Void> {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public Object visit(ParamExpression<?> expr, Void context) {
-        throw new UnsupportedOperationException();
-    }
-
     @Override
     public Object visit(TemplateExpression<?> expr, Void context) {
         throw new UnsupportedOperationException();
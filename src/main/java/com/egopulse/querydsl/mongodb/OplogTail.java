@@ -0,0 +1,146 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.client.model.Projections;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import rx.Observable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@code OplogTail} follows the replica set oplog of one collection with a tailable cursor.
+ * <p>
+ * Inserts are matched against the filter on the server by prefixing its keys with the field of the inserted
+ * document, updates and deletes are emitted for every document of the collection. Tailing starts at the latest
+ * entry and resumes after the last emitted entry when the cursor dies, is killed or the connection fails.
+ */
+final class OplogTail {
+
+    static final String OPLOG = "oplog.rs";
+
+    static final String TIMESTAMP = "ts";
+
+    static final String NAMESPACE = "ns";
+
+    static final String OPERATION = "op";
+
+    static final String OBJECT = "o";
+
+    static final String UPDATED_OBJECT = "o2";
+
+    static final String INSERT = "i";
+
+    static final String UPDATE = "u";
+
+    static final String DELETE = "d";
+
+    private static final long RESUME_DELAY_MILLIS = 100;
+
+    private final MongoCollection<BsonDocument> oplog;
+
+    private final String namespace;
+
+    private final BsonDocument filter;
+
+    /**
+     * @param local the {@code local} database of a replica set member
+     * @param namespace database and collection name separated by a dot
+     * @param filter filter of inserted documents
+     */
+    OplogTail(MongoDatabase local, String namespace, BsonDocument filter) {
+        this.oplog = local.getCollection(OPLOG, BsonDocument.class);
+        this.namespace = namespace;
+        this.filter = filter;
+    }
+
+    /**
+     * @return oplog entries written after subscription
+     */
+    Observable<BsonDocument> tail() {
+        return latestTimestamp().flatMap(this::tail);
+    }
+
+    /**
+     * @param start timestamp of the last entry not to emit
+     * @return oplog entries written after the timestamp
+     */
+    Observable<BsonDocument> tail(BsonTimestamp start) {
+        return Observable.defer(() -> {
+            AtomicReference<BsonTimestamp> last = new AtomicReference<BsonTimestamp>(start);
+            return Observable.defer(() -> oplog.find(query(last.get()))
+                    .cursorType(CursorType.TailableAwait)
+                    .oplogReplay(true)
+                    .noCursorTimeout(true)
+                    .toObservable())
+                    .doOnNext(entry -> last.set(entry.getTimestamp(TIMESTAMP)))
+                    .retryWhen(errors -> errors.flatMap(e -> e instanceof MongoCursorNotFoundException
+                            || e instanceof MongoSocketException
+                            ? Observable.timer(RESUME_DELAY_MILLIS, TimeUnit.MILLISECONDS) : Observable.error(e)))
+                    .repeatWhen(ends -> ends.delay(RESUME_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    /**
+     * @return timestamp of the latest oplog entry
+     */
+    Observable<BsonTimestamp> latestTimestamp() {
+        return oplog.find()
+                .sort(new BsonDocument("$natural", new BsonInt32(-1)))
+                .projection(Projections.include(TIMESTAMP))
+                .first()
+                .map(entry -> entry.getTimestamp(TIMESTAMP))
+                .defaultIfEmpty(new BsonTimestamp(0, 0));
+    }
+
+    private BsonDocument query(BsonTimestamp after) {
+        BsonDocument query = new BsonDocument(TIMESTAMP, new BsonDocument("$gt", after))
+                .append(NAMESPACE, new BsonString(namespace));
+        if (filter.isEmpty()) {
+            return query.append(OPERATION, new BsonDocument("$in", new BsonArray(Arrays.<BsonValue>asList(
+                    new BsonString(INSERT), new BsonString(UPDATE), new BsonString(DELETE)))));
+        }
+        BsonDocument inserts = prefix(filter, OBJECT + ".").append(OPERATION, new BsonString(INSERT));
+        BsonDocument others = new BsonDocument(OPERATION, new BsonDocument("$in", new BsonArray(Arrays.<BsonValue>asList(
+                new BsonString(UPDATE), new BsonString(DELETE)))));
+        return query.append("$or", new BsonArray(Arrays.<BsonValue>asList(inserts, others)));
+    }
+
+    /**
+     * Move a filter to a subdocument
+     *
+     * @param filter filter
+     * @param prefix field of the subdocument followed by a dot
+     * @return filter of the subdocument
+     */
+    static BsonDocument prefix(BsonDocument filter, String prefix) {
+        BsonDocument prefixed = new BsonDocument();
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+            String key = entry.getKey();
+            if (key.equals("$and") || key.equals("$or") || key.equals("$nor")) {
+                BsonArray conditions = new BsonArray();
+                for (BsonValue condition : entry.getValue().asArray()) {
+                    conditions.add(prefix(condition.asDocument(), prefix));
+                }
+                prefixed.append(key, conditions);
+            } else if (key.startsWith("$")) {
+                throw new IllegalArgumentException("Filter with " + key + " can't be watched");
+            } else {
+                prefixed.append(prefix + key, entry.getValue());
+            }
+        }
+        return prefixed;
+    }
+
+}
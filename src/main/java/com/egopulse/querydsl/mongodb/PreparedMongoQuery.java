@@ -0,0 +1,89 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.rx.client.FindObservable;
+import com.mongodb.rx.client.MongoCollection;
+import com.querydsl.core.QueryModifiers;
+import com.querydsl.core.types.ParamExpression;
+import rx.Observable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@code PreparedMongoQuery} is a query serialized once, to be executed many times with different parameter bindings.
+ * <p>
+ * Instances are immutable and can be executed concurrently. Bindings given at execution override the
+ * ones set on the query before it was prepared.
+ *
+ * @param <K> result type
+ */
+public class PreparedMongoQuery<K> {
+
+    private final MongoCollection<K> collection;
+
+    private final QueryPlan plan;
+
+    private final List<Object> values;
+
+    private final Map<ParamExpression<?>, Object> defaults;
+
+    private final QueryModifiers modifiers;
+
+    private final int batchSize;
+
+    PreparedMongoQuery(MongoCollection<K> collection, QueryPlan plan, List<Object> values,
+                       Map<ParamExpression<?>, Object> defaults, QueryModifiers modifiers, int batchSize) {
+        this.collection = collection;
+        this.plan = plan;
+        this.values = values;
+        this.defaults = defaults;
+        this.modifiers = modifiers;
+        this.batchSize = batchSize;
+    }
+
+    public <T> Observable<List<K>> fetch(ParamExpression<T> param, T value) {
+        return fetch(Collections.<ParamExpression<?>, Object>singletonMap(param, value));
+    }
+
+    public Observable<List<K>> fetch(Map<ParamExpression<?>, ?> params) {
+        return stream(params).toList();
+    }
+
+    public <T> Observable<K> stream(ParamExpression<T> param, T value) {
+        return stream(Collections.<ParamExpression<?>, Object>singletonMap(param, value));
+    }
+
+    public Observable<K> stream(Map<ParamExpression<?>, ?> params) {
+        Observable<K> results = createFind(params).toObservable();
+        if (batchSize > 0) {
+            results = results.lift(new BatchedRequests<K>(batchSize));
+        }
+        return results;
+    }
+
+    public <T> Observable<K> fetchOne(ParamExpression<T> param, T value) {
+        return fetchOne(Collections.<ParamExpression<?>, Object>singletonMap(param, value));
+    }
+
+    public Observable<K> fetchOne(Map<ParamExpression<?>, ?> params) {
+        return createFind(params).first();
+    }
+
+    private FindObservable<K> createFind(Map<ParamExpression<?>, ?> params) {
+        Map<ParamExpression<?>, ?> bindings = params;
+        if (!defaults.isEmpty()) {
+            Map<ParamExpression<?>, Object> merged = new HashMap<ParamExpression<?>, Object>(defaults);
+            merged.putAll(params);
+            bindings = merged;
+        }
+        SerializedQuery query = plan.bind(values, bindings);
+        FindObservable<K> find = collection
+                .find(query.getFilter())
+                .projection(query.getProjection())
+                .sort(query.getSort());
+        return AsyncMongoQuery.applyModifiers(find, modifiers);
+    }
+
+}
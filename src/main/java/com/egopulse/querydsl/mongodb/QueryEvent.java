@@ -0,0 +1,143 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.QueryModifiers;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code QueryEvent} holds the measurements of one executed query, see {@link QueryMetrics}.
+ */
+public final class QueryEvent {
+
+    /**
+     * Shape of queries without a stable shape, see {@link #getShape()}
+     */
+    public static final String UNKNOWN_SHAPE = "?";
+
+    private final String collection;
+
+    private final String operation;
+
+    private final String shape;
+
+    private final long serializationNanos;
+
+    private final long firstDocumentNanos;
+
+    private final long totalNanos;
+
+    private final long documents;
+
+    private final long bytes;
+
+    @Nullable
+    private final Throwable error;
+
+    private final SerializedQuery query;
+
+    private final QueryModifiers modifiers;
+
+    QueryEvent(String collection, String operation, String shape, long serializationNanos, long firstDocumentNanos,
+               long totalNanos, long documents, long bytes, @Nullable Throwable error, SerializedQuery query,
+               QueryModifiers modifiers) {
+        this.collection = collection;
+        this.operation = operation;
+        this.shape = shape;
+        this.serializationNanos = serializationNanos;
+        this.firstDocumentNanos = firstDocumentNanos;
+        this.totalNanos = totalNanos;
+        this.documents = documents;
+        this.bytes = bytes;
+        this.error = error;
+        this.query = query;
+        this.modifiers = modifiers;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return kind of fetch, e.g. find, first, count or lookup
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the normalized query shape, the operators, paths, order and projection with the constant values
+     * replaced by placeholders
+     *
+     * @return query shape, or {@link #UNKNOWN_SHAPE} for queries without a stable shape
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * @param unit time unit
+     * @return time spent serializing the query
+     */
+    public long getSerializationTime(TimeUnit unit) {
+        return unit.convert(serializationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit time unit
+     * @return time from subscription to the first document, or -1 if no document was returned
+     */
+    public long getFirstDocumentTime(TimeUnit unit) {
+        return firstDocumentNanos < 0 ? -1 : unit.convert(firstDocumentNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit time unit
+     * @return time from subscription to termination
+     */
+    public long getTotalTime(TimeUnit unit) {
+        return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return number of results emitted, one for counts and existence checks
+     */
+    public long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return number of BSON bytes decoded into results
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return error the query failed with, or null
+     */
+    @Nullable
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the serialized filter, sort and projection
+     */
+    public SerializedQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return limit and offset of the query
+     */
+    public QueryModifiers getModifiers() {
+        return modifiers;
+    }
+
+    @Override
+    public String toString() {
+        return collection + " " + operation + " " + shape + " " + totalNanos + "ns " + documents + " documents";
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.QueryModifiers;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import rx.Observable;
+import rx.functions.Func1;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the executions of a query and records each into {@link QueryMetrics}.
+ * <p>
+ * Decoded bytes are counted by decoding the results through a codec created for each subscription, which reads
+ * the position of the driver's binary reader around the wrapped codec.
+ *
+ * @param <K> document type
+ */
+final class QueryMeasurement<K> {
+
+    private final Codec<K> codec;
+
+    private final QueryMetrics metrics;
+
+    private final String collection;
+
+    private final String operation;
+
+    private final String shape;
+
+    private final long serializationNanos;
+
+    private final SerializedQuery query;
+
+    private final QueryModifiers modifiers;
+
+    QueryMeasurement(Codec<K> codec, QueryMetrics metrics, String collection, String operation, String shape,
+                     long serializationNanos, SerializedQuery query, QueryModifiers modifiers) {
+        this.codec = codec;
+        this.metrics = metrics;
+        this.collection = collection;
+        this.operation = operation;
+        this.shape = shape;
+        this.serializationNanos = serializationNanos;
+        this.query = query;
+        this.modifiers = modifiers;
+    }
+
+    /**
+     * Measure each subscription to the results of the given execution
+     *
+     * @param execution execution decoding its documents with the given codec
+     * @return measured results
+     */
+    <T> Observable<T> measure(Func1<Codec<K>, Observable<T>> execution) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            AtomicLong firstDocument = new AtomicLong(-1);
+            AtomicLong documents = new AtomicLong();
+            AtomicBoolean recorded = new AtomicBoolean();
+            CountingCodec counting = new CountingCodec();
+            Recorder record = error -> {
+                if (recorded.compareAndSet(false, true)) {
+                    long first = firstDocument.get();
+                    metrics.record(new QueryEvent(collection, operation, shape, serializationNanos,
+                            first < 0 ? -1 : first - start, System.nanoTime() - start,
+                            documents.get(), counting.bytes.get(), error, query, modifiers));
+                }
+            };
+            return execution.call(counting)
+                    .doOnNext(result -> {
+                        if (documents.getAndIncrement() == 0) {
+                            firstDocument.set(System.nanoTime());
+                        }
+                    })
+                    .doOnError(record::record)
+                    .doOnCompleted(() -> record.record(null))
+                    .doOnUnsubscribe(() -> record.record(null));
+        });
+    }
+
+    /**
+     * Codec counting the bytes decoded for one subscription
+     */
+    private final class CountingCodec implements Codec<K> {
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public K decode(BsonReader reader, DecoderContext decoderContext) {
+            if (!(reader instanceof BsonBinaryReader)) {
+                return codec.decode(reader, decoderContext);
+            }
+            BsonBinaryReader binaryReader = (BsonBinaryReader) reader;
+            int start = binaryReader.getBsonInput().getPosition();
+            K result = codec.decode(reader, decoderContext);
+            bytes.addAndGet(binaryReader.getBsonInput().getPosition() - start);
+            return result;
+        }
+
+        @Override
+        public void encode(BsonWriter writer, K value, EncoderContext encoderContext) {
+            codec.encode(writer, value, encoderContext);
+        }
+
+        @Override
+        public Class<K> getEncoderClass() {
+            return codec.getEncoderClass();
+        }
+    }
+
+    private interface Recorder {
+
+        void record(@Nullable Throwable error);
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.egopulse.querydsl.mongodb;
+
+/**
+ * {@code QueryMetrics} receives the measurements of executed queries, see {@link AsyncMongoQuery#metrics(QueryMetrics)}.
+ * <p>
+ * Events are recorded on driver threads once a query completes, fails or is unsubscribed from, so implementations
+ * must be thread safe and shouldn't block. Queries with the {@link #NONE} default aren't measured at all.
+ */
+public interface QueryMetrics {
+
+    QueryMetrics NONE = event -> { };
+
+    /**
+     * Record the measurements of one query
+     *
+     * @param event measurements
+     */
+    void record(QueryEvent event);
+
+}
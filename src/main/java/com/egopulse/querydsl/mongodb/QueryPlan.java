@@ -0,0 +1,349 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.async.client.MongoClientSettings;
+import com.querydsl.core.types.Constant;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.ParamExpression;
+import com.querydsl.core.types.ParamNotSetException;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonReader;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * {@code QueryPlan} is a query serialized once with its constants replaced by slots.
+ * <p>
+ * The filter is rendered into a template document when the plan is compiled, with the positions of the slots
+ * recorded. Binding a plan to the constants of a query of the same {@link QueryShape} doesn't revisit the
+ * expression tree or render the filter again, only the converted slot values are encoded into a copy of the
+ * template.
+ */
+public final class QueryPlan {
+
+    private static final CodecRegistry DEFAULT_REGISTRY = MongoClientSettings.builder().build().getCodecRegistry();
+
+    // not a valid key of a stored document, so it can't clash with the rendered constants of the template
+    private static final String SLOT_MARKER = "\0slot";
+
+    private static final String VALUE = "value";
+
+    @Nullable
+    private final BsonDocument filter;
+
+    private final List<SlotPosition> positions;
+
+    private final Bson sort;
+
+    @Nullable
+    private final Bson projection;
+
+    private final int slots;
+
+    private QueryPlan(@Nullable BsonDocument filter, List<SlotPosition> positions, Bson sort,
+                      @Nullable Bson projection, int slots) {
+        this.filter = filter;
+        this.positions = positions;
+        this.sort = sort;
+        this.projection = projection;
+        this.slots = slots;
+    }
+
+    /**
+     * Compile the given query parts, which must have the given shape
+     *
+     * @param shape shape of the query
+     * @param filter filter, may be null
+     * @param orderBy order specifiers
+     * @param projection projection, may be null
+     * @return plan or null, if the slots could not be matched to the shape
+     */
+    @Nullable
+    static QueryPlan compile(QueryShape shape, @Nullable Predicate filter, List<OrderSpecifier<?>> orderBy,
+                             @Nullable Expression<?> projection) {
+        PlanSerializer serializer = new PlanSerializer();
+        Bson template = filter == null ? null : (Bson) serializer.handle(filter);
+        Bson sort = serializer.toSort(orderBy);
+        Bson projectionDocument = serializer.toProjection(projection);
+        if (serializer.slots != shape.getValues().size()) {
+            return null;
+        }
+        if (template == null) {
+            return new QueryPlan(null, Collections.<SlotPosition>emptyList(), sort, projectionDocument, serializer.slots);
+        }
+        MarkerCodec markers = new MarkerCodec();
+        BsonDocument rendered;
+        try {
+            rendered = template.toBsonDocument(BsonDocument.class, CodecRegistries.fromRegistries(
+                    CodecRegistries.fromCodecs(markers), DEFAULT_REGISTRY));
+        } catch (CodecConfigurationException e) {
+            // a structural value without a default codec, serialize queries of this shape directly
+            return null;
+        }
+        List<SlotPosition> positions = new ArrayList<SlotPosition>();
+        findSlots(rendered, new ArrayList<Object>(), markers.slots, positions);
+        return new QueryPlan(rendered, positions, sort, projectionDocument, serializer.slots);
+    }
+
+    private static void findSlots(BsonValue value, List<Object> path, List<Slot> slots, List<SlotPosition> positions) {
+        if (value.isDocument()) {
+            BsonDocument document = value.asDocument();
+            if (document.size() == 1 && document.containsKey(SLOT_MARKER)) {
+                Slot slot = slots.get(document.getInt32(SLOT_MARKER).getValue());
+                positions.add(new SlotPosition(slot, path.toArray()));
+                return;
+            }
+            for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+                path.add(entry.getKey());
+                findSlots(entry.getValue(), path, slots, positions);
+                path.remove(path.size() - 1);
+            }
+        } else if (value.isArray()) {
+            BsonArray array = value.asArray();
+            for (int i = 0; i < array.size(); i++) {
+                path.add(i);
+                findSlots(array.get(i), path, slots, positions);
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Bind the given slot values
+     *
+     * @param values slot values in slot order
+     * @return serialized query
+     */
+    public SerializedQuery bind(List<?> values) {
+        return bind(values, Collections.<ParamExpression<?>, Object>emptyMap());
+    }
+
+    /**
+     * Bind the given slot values, resolving parameter slots from the given bindings
+     *
+     * @param values slot values in slot order, with parameters for parameter slots
+     * @param params parameter bindings
+     * @return serialized query
+     */
+    public SerializedQuery bind(List<?> values, Map<ParamExpression<?>, ?> params) {
+        List<Object> resolved = null;
+        for (int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if (value instanceof ParamExpression<?>) {
+                if (resolved == null) {
+                    resolved = new ArrayList<Object>(values);
+                }
+                if (!params.containsKey(value)) {
+                    throw new ParamNotSetException((ParamExpression<?>) value);
+                }
+                resolved.set(i, params.get(value));
+            }
+        }
+        return bindResolved(resolved != null ? resolved : values);
+    }
+
+    private SerializedQuery bindResolved(List<?> values) {
+        if (values.size() != slots) {
+            throw new IllegalArgumentException("Expected " + slots + " values, got " + values.size());
+        }
+        Bson boundFilter = filter == null ? new BsonDocument() : new BoundFilter(filter, positions, values);
+        return new SerializedQuery(boundFilter, sort, projection);
+    }
+
+    /**
+     * Serializer which emits slots instead of constant values
+     */
+    private static final class PlanSerializer extends MongodbSerializer {
+
+        private int slots;
+
+        @Override
+        public Object visit(Constant<?> expr, Void context) {
+            return new Slot(slots++, Collection.class.isAssignableFrom(expr.getType()), Slot::toValue);
+        }
+
+        @Override
+        public Object visit(ParamExpression<?> expr, Void context) {
+            return new Slot(slots++, Collection.class.isAssignableFrom(expr.getType()), Slot::toValue);
+        }
+
+        @Override
+        protected Object convert(Object value, Function<Object, ?> conversion) {
+            if (value instanceof Slot) {
+                return ((Slot) value).andThen(conversion);
+            }
+            return super.convert(value, conversion);
+        }
+    }
+
+    /**
+     * Placeholder for the converted value of a constant
+     */
+    static final class Slot {
+
+        private final int index;
+
+        private final boolean collection;
+
+        private final Function<Object, ?> conversion;
+
+        Slot(int index, boolean collection, Function<Object, ?> conversion) {
+            this.index = index;
+            this.collection = collection;
+            this.conversion = conversion;
+        }
+
+        Slot andThen(Function<Object, ?> next) {
+            return new Slot(index, false, conversion.andThen(next));
+        }
+
+        Object resolve(List<?> values) {
+            return conversion.apply(values.get(index));
+        }
+
+        static Object toValue(Object constant) {
+            return constant instanceof Enum<?> ? ((Enum<?>) constant).name() : constant;
+        }
+    }
+
+    /**
+     * Position of a slot in the rendered template, as keys of documents and indexes of arrays
+     */
+    private static final class SlotPosition {
+
+        private final Slot slot;
+
+        private final Object[] path;
+
+        SlotPosition(Slot slot, Object[] path) {
+            this.slot = slot;
+            this.path = path;
+        }
+
+        void bind(BsonDocument document, List<?> values, CodecRegistry registry) {
+            BsonValue parent = document;
+            for (int i = 0; i < path.length - 1; i++) {
+                parent = path[i] instanceof String
+                        ? parent.asDocument().get(path[i])
+                        : parent.asArray().get((Integer) path[i]);
+            }
+            BsonValue value = encode(slot, slot.resolve(values), registry);
+            Object last = path[path.length - 1];
+            if (last instanceof String) {
+                parent.asDocument().put((String) last, value);
+            } else {
+                parent.asArray().set((Integer) last, value);
+            }
+        }
+    }
+
+    private static final class BoundFilter implements Bson {
+
+        private final BsonDocument template;
+
+        private final List<SlotPosition> positions;
+
+        private final List<?> values;
+
+        BoundFilter(BsonDocument template, List<SlotPosition> positions, List<?> values) {
+            this.template = template;
+            this.positions = positions;
+            this.values = values;
+        }
+
+        @Override
+        public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, CodecRegistry codecRegistry) {
+            BsonDocument bound = template.clone();
+            for (SlotPosition position : positions) {
+                position.bind(bound, values, codecRegistry);
+            }
+            return bound;
+        }
+
+        @Override
+        public String toString() {
+            return "BoundFilter{template=" + template + ", values=" + values + '}';
+        }
+    }
+
+    /**
+     * Encode the converted value of a slot the way the driver's filters encode values
+     */
+    private static BsonValue encode(Slot slot, @Nullable Object value, CodecRegistry registry) {
+        BsonDocument holder = new BsonDocument();
+        BsonDocumentWriter writer = new BsonDocumentWriter(holder);
+        EncoderContext encoderContext = EncoderContext.builder().build();
+        writer.writeStartDocument();
+        writer.writeName(VALUE);
+        if (slot.collection && value instanceof Iterable<?>) {
+            writer.writeStartArray();
+            for (Object item : (Iterable<?>) value) {
+                encodeValue(writer, item, registry, encoderContext);
+            }
+            writer.writeEndArray();
+        } else {
+            encodeValue(writer, value, registry, encoderContext);
+        }
+        writer.writeEndDocument();
+        return holder.get(VALUE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void encodeValue(BsonWriter writer, @Nullable Object value, CodecRegistry registry,
+                                    EncoderContext encoderContext) {
+        if (value == null) {
+            writer.writeNull();
+        } else if (value instanceof Bson) {
+            Codec<BsonDocument> codec = registry.get(BsonDocument.class);
+            codec.encode(writer, ((Bson) value).toBsonDocument(BsonDocument.class, registry), encoderContext);
+        } else {
+            Codec<Object> codec = (Codec<Object>) registry.get(value.getClass());
+            encoderContext.encodeWithChildContext(codec, writer, value);
+        }
+    }
+
+    /**
+     * Renders slots as markers numbered in rendering order, collecting the slots
+     */
+    private static final class MarkerCodec implements Codec<Slot> {
+
+        private final List<Slot> slots = new ArrayList<Slot>();
+
+        @Override
+        public void encode(BsonWriter writer, Slot slot, EncoderContext encoderContext) {
+            writer.writeStartDocument();
+            writer.writeInt32(SLOT_MARKER, slots.size());
+            writer.writeEndDocument();
+            slots.add(slot);
+        }
+
+        @Override
+        public Slot decode(BsonReader reader, DecoderContext decoderContext) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Class<Slot> getEncoderClass() {
+            return Slot.class;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.ParamExpression;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * {@code QueryPlanCache} is a bounded cache of {@link QueryPlan}s keyed by {@link QueryShape}.
+ * <p>
+ * A cache is meant to be shared between queries, see {@link AsyncMongoQuery#planCache(QueryPlanCache)}.
+ * On a hit only the constants of the query are bound into the cached plan.
+ */
+public class QueryPlanCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String, Optional<QueryPlan>> plans;
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+
+    public QueryPlanCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public QueryPlanCache(long maximumSize) {
+        this.plans = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Serialize the given query parts, reusing the plan of an earlier query of the same shape
+     *
+     * @param filter filter, may be null
+     * @param orderBy order specifiers
+     * @param projection projection, may be null
+     * @return serialized query
+     */
+    public SerializedQuery serialize(@Nullable Predicate filter, List<OrderSpecifier<?>> orderBy,
+                                     @Nullable Expression<?> projection) {
+        return serialize(filter, orderBy, projection, Collections.<ParamExpression<?>, Object>emptyMap());
+    }
+
+    /**
+     * Serialize the given query parts, reusing the plan of an earlier query of the same shape
+     *
+     * @param filter filter, may be null
+     * @param orderBy order specifiers
+     * @param projection projection, may be null
+     * @param params parameter bindings
+     * @return serialized query
+     */
+    public SerializedQuery serialize(@Nullable Predicate filter, List<OrderSpecifier<?>> orderBy,
+                                     @Nullable Expression<?> projection, Map<ParamExpression<?>, Object> params) {
+        QueryShape shape = QueryShape.of(filter, orderBy, projection);
+        if (shape == null) {
+            return serializeDirectly(filter, orderBy, projection, params);
+        }
+        Optional<QueryPlan> plan;
+        try {
+            // concurrent misses of a shape wait for one compilation, shapes which can't be compiled are cached too
+            plan = plans.get(shape.getKey(), () -> Optional.ofNullable(QueryPlan.compile(shape, filter, orderBy, projection)));
+        } catch (ExecutionException e) {
+            throw new IllegalArgumentException(e.getCause());
+        }
+        if (!plan.isPresent()) {
+            return serializeDirectly(filter, orderBy, projection, params);
+        }
+        return plan.get().bind(shape.getValues(), params);
+    }
+
+    private SerializedQuery serializeDirectly(@Nullable Predicate filter, List<OrderSpecifier<?>> orderBy,
+                                              @Nullable Expression<?> projection, Map<ParamExpression<?>, Object> params) {
+        MongodbSerializer serializer = params.isEmpty() ? this.serializer : new MongodbSerializer(params);
+        Bson filterCondition = filter == null ? new BsonDocument() : (Bson) serializer.handle(filter);
+        return new SerializedQuery(filterCondition, serializer.toSort(orderBy), serializer.toProjection(projection));
+    }
+
+    /**
+     * @return number of lookups which found a cached plan
+     */
+    public long getHitCount() {
+        return plans.stats().hitCount();
+    }
+
+    /**
+     * @return number of lookups which compiled a new plan
+     */
+    public long getMissCount() {
+        return plans.stats().missCount();
+    }
+
+    /**
+     * @return number of cached plans, including shapes which can't be compiled
+     */
+    public long size() {
+        return plans.size();
+    }
+
+    /**
+     * Discard all cached plans
+     */
+    public void clear() {
+        plans.invalidateAll();
+    }
+
+}
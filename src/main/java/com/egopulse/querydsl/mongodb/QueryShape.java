@@ -0,0 +1,140 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.types.*;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@code QueryShape} is the structural shape of a query: its operators, paths, order and projection
+ * with the constant values replaced by slots.
+ * <p>
+ * Constants which change the structure of the serialized query, such as the size in
+ * {@code collection.size().eq(n)} or the key in {@code map.containsKey(key)}, are part of the shape.
+ * Slots are numbered in the order the serializer visits them, left to right. The value of a parameter slot is the
+ * {@link ParamExpression} itself, to be resolved when the plan is bound.
+ */
+final class QueryShape {
+
+    private final String key;
+
+    private final List<Object> values;
+
+    private QueryShape(String key, List<Object> values) {
+        this.key = key;
+        this.values = values;
+    }
+
+    /**
+     * Get the shape of the given query parts
+     *
+     * @param filter filter, may be null
+     * @param orderBy order specifiers
+     * @param projection projection, may be null
+     * @return shape or null, if the query contains expressions without a stable shape
+     */
+    @Nullable
+    static QueryShape of(@Nullable Predicate filter, List<OrderSpecifier<?>> orderBy, @Nullable Expression<?> projection) {
+        Builder builder = new Builder();
+        builder.key.append("f:");
+        if (filter != null && !builder.append(filter, false)) {
+            return null;
+        }
+        builder.key.append("|o:");
+        for (OrderSpecifier<?> order : orderBy) {
+            if (!builder.append(order.getTarget(), true)) {
+                return null;
+            }
+            builder.key.append(order.getOrder()).append(',');
+        }
+        builder.key.append("|p:");
+        if (projection instanceof FactoryExpression) {
+            for (Expression<?> arg : ((FactoryExpression<?>) projection).getArgs()) {
+                if (!builder.append(arg, true)) {
+                    return null;
+                }
+                builder.key.append(',');
+            }
+        }
+        return new QueryShape(builder.key.toString(), Collections.unmodifiableList(builder.values));
+    }
+
+    /**
+     * @return key identifying the shape
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return slot values in slot order, with parameters for parameter slots
+     */
+    List<Object> getValues() {
+        return values;
+    }
+
+    private static final class Builder {
+
+        private final StringBuilder key = new StringBuilder(64);
+
+        private final List<Object> values = new ArrayList<Object>();
+
+        boolean append(Expression<?> expr, boolean literal) {
+            if (expr instanceof Constant<?>) {
+                Constant<?> constant = (Constant<?>) expr;
+                if (literal) {
+                    appendLiteral(String.valueOf(constant.getConstant()));
+                } else {
+                    values.add(constant.getConstant());
+                    key.append(Collection.class.isAssignableFrom(constant.getType()) ? "?*" : "?");
+                }
+                return true;
+            } else if (expr instanceof ParamExpression<?>) {
+                if (literal) {
+                    return false;
+                }
+                values.add(expr);
+                key.append(Collection.class.isAssignableFrom(expr.getType()) ? "$*" : "$");
+                return true;
+            } else if (expr instanceof Path<?>) {
+                appendLiteral(expr.toString());
+                return true;
+            } else if (expr instanceof Operation<?>) {
+                Operation<?> operation = (Operation<?>) expr;
+                Operator op = operation.getOperator();
+                if (!(op instanceof Ops)) {
+                    key.append(op.getClass().getName()).append('.');
+                }
+                key.append(op.name()).append('(');
+                for (int i = 0; i < operation.getArgs().size(); i++) {
+                    if (!append(operation.getArg(i), isLiteral(operation, i))) {
+                        return false;
+                    }
+                    key.append(',');
+                }
+                key.append(')');
+                return true;
+            }
+            return false;
+        }
+
+        private void appendLiteral(String literal) {
+            key.append(literal.length()).append(':').append(literal);
+        }
+
+        private static boolean isLiteral(Operation<?> operation, int index) {
+            Operator op = operation.getOperator();
+            if (op == Ops.CONTAINS_KEY) {
+                return index == 1;
+            } else if (op == Ops.EQ && index == 1 && operation.getArg(0) instanceof Operation<?>) {
+                Operator lhs = ((Operation<?>) operation.getArg(0)).getOperator();
+                return lhs == Ops.COL_SIZE || lhs == Ops.ARRAY_SIZE;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.egopulse.querydsl.mongodb;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code QueryStats} aggregates the executions of one query fingerprint, see {@link SlowQueryLog}.
+ */
+public final class QueryStats {
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final String collection;
+
+    private final String operation;
+
+    private final String fingerprint;
+
+    private final Histogram latencies = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+
+    private final AtomicLong slowCount = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    final AtomicBoolean explaining = new AtomicBoolean();
+
+    @Nullable
+    private volatile String plan;
+
+    private volatile long docsExamined = -1;
+
+    private volatile long docsReturned = -1;
+
+    QueryStats(String collection, String operation, String fingerprint) {
+        this.collection = collection;
+        this.operation = operation;
+        this.fingerprint = fingerprint;
+    }
+
+    void record(long micros, boolean slow) {
+        latencies.recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+        totalMicros.addAndGet(micros);
+        if (slow) {
+            slowCount.incrementAndGet();
+        }
+    }
+
+    void explained(String plan, long docsExamined, long docsReturned) {
+        this.plan = plan;
+        this.docsExamined = docsExamined;
+        this.docsReturned = docsReturned;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return operation of the query, such as {@code find} or {@code count}
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Get the serialized filter and sort of the query with the constant values replaced by {@code "?"}
+     *
+     * @return fingerprint
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return number of executions
+     */
+    public long getCount() {
+        return latencies.getTotalCount();
+    }
+
+    /**
+     * @return number of executions over the threshold
+     */
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    /**
+     * @param unit time unit
+     * @return sum of the latencies of all executions
+     */
+    public long getTotalTime(TimeUnit unit) {
+        return unit.convert(totalMicros.get(), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @param unit time unit
+     * @return latency at the given percentile
+     */
+    public long getLatency(double percentile, TimeUnit unit) {
+        return unit.convert(latencies.getValueAtPercentile(percentile), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Get the winning plan of the last explained slow execution
+     *
+     * @return COLLSCAN, IXSCAN or another leaf stage, or null if not explained
+     */
+    @Nullable
+    public String getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return documents examined by the last explained slow execution, or -1 if not explained
+     */
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    /**
+     * @return documents returned by the last explained slow execution, or -1 if not explained
+     */
+    public long getDocsReturned() {
+        return docsReturned;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s: %d executions, %d slow, p50 %d ms, p99 %d ms, p99.9 %d ms, plan %s, examined %d, returned %d",
+                collection, operation, fingerprint, getCount(), getSlowCount(),
+                getLatency(50, TimeUnit.MILLISECONDS), getLatency(99, TimeUnit.MILLISECONDS),
+                getLatency(99.9, TimeUnit.MILLISECONDS), plan, docsExamined, docsReturned);
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code ResultCache} keeps the results of queries on rarely changing collections in memory.
+ * <pre>
+ * ResultCache cache = new ResultCache(10000, 5, TimeUnit.MINUTES).cacheCollections("country", "currency");
+ * MongoQuery.forDatabase(database).resultCache(cache).where(country.code.eq("FI")).fetchFrom("country");
+ * ...
+ * cache.invalidate("country");
+ * </pre>
+ * Only queries on the collections given to {@link #cacheCollections(String...)} are cached. Entries are evicted
+ * by the given {@link CacheBuilder}, least recently used first when a maximum size is set. Writes are not tracked,
+ * write paths invalidate the collections they change. Results are cached as documents and decoded for every
+ * caller, so a caller modifying its results doesn't change the results of the others.
+ */
+public class ResultCache {
+
+    private final Cache<String, List<BsonDocument>> results;
+
+    private final Set<String> collections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    public ResultCache(long maximumSize) {
+        this(CacheBuilder.newBuilder().maximumSize(maximumSize));
+    }
+
+    public ResultCache(long maximumSize, long expireAfterWrite, TimeUnit unit) {
+        this(CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(expireAfterWrite, unit));
+    }
+
+    /**
+     * @param builder cache builder defining the eviction of results
+     */
+    public ResultCache(CacheBuilder<Object, Object> builder) {
+        this.results = builder.recordStats().build();
+    }
+
+    /**
+     * Cache the results of queries on the given collections
+     *
+     * @param collections collection names
+     * @return the current object
+     */
+    public ResultCache cacheCollections(String... collections) {
+        Collections.addAll(this.collections, collections);
+        return this;
+    }
+
+    /**
+     * @param collection collection name
+     * @return true if queries on the given collection are cached
+     */
+    public boolean isCached(String collection) {
+        return collections.contains(collection);
+    }
+
+    /**
+     * Serve the results of the given source from the cache, or run it and cache its results. The documents are
+     * decoded for each subscriber, so callers never share result instances.
+     *
+     * @param collection collection name
+     * @param key query key, starting with the collection name
+     * @param source query results as documents
+     * @param codec codec of the result type
+     * @return cached results
+     */
+    <T> Observable<T> execute(String collection, String key, Observable<BsonDocument> source, Codec<T> codec) {
+        return Observable.defer(() -> {
+            List<BsonDocument> cached = results.getIfPresent(key);
+            if (cached != null) {
+                return Observable.from(cached);
+            }
+            long generation = generation(collection).get();
+            return source.toList()
+                    .doOnNext(list -> {
+                        // results read before an invalidation of the collection may be stale. An invalidation
+                        // increments the generation before removing entries, so one racing the put is either
+                        // seen by the check after it or removes the entry itself
+                        if (generation(collection).get() == generation) {
+                            List<BsonDocument> entry = Collections.unmodifiableList(new ArrayList<BsonDocument>(list));
+                            results.put(key, entry);
+                            if (generation(collection).get() != generation) {
+                                results.asMap().remove(key, entry);
+                            }
+                        }
+                    })
+                    .flatMapIterable(list -> list);
+        }).map(document -> codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build()));
+    }
+
+    private AtomicLong generation(String collection) {
+        AtomicLong generation = generations.get(collection);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = generations.putIfAbsent(collection, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Discard the cached results of queries on the given collection
+     *
+     * @param collection collection name
+     */
+    public void invalidate(String collection) {
+        generation(collection).incrementAndGet();
+        String prefix = collection + '|';
+        results.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Discard all cached results
+     */
+    public void invalidateAll() {
+        for (String collection : collections) {
+            generation(collection).incrementAndGet();
+        }
+        results.invalidateAll();
+    }
+
+    /**
+     * @return number of queries served from the cache
+     */
+    public long getHitCount() {
+        return results.stats().hitCount();
+    }
+
+    /**
+     * @return number of queries sent to the server
+     */
+    public long getMissCount() {
+        return results.stats().missCount();
+    }
+
+    /**
+     * @return number of cached results
+     */
+    public long size() {
+        return results.size();
+    }
+
+}
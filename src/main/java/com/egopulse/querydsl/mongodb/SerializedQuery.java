@@ -0,0 +1,64 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.querydsl.core.QueryModifiers;
+import org.bson.BsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@code SerializedQuery} holds the filter, sort and projection documents of a serialized query
+ */
+public final class SerializedQuery {
+
+    private final Bson filter;
+
+    private final Bson sort;
+
+    @Nullable
+    private final Bson projection;
+
+    public SerializedQuery(Bson filter, Bson sort, @Nullable Bson projection) {
+        this.filter = filter;
+        this.sort = sort;
+        this.projection = projection;
+    }
+
+    public Bson getFilter() {
+        return filter;
+    }
+
+    public Bson getSort() {
+        return sort;
+    }
+
+    @Nullable
+    public Bson getProjection() {
+        return projection;
+    }
+
+    /**
+     * Create a key identifying this query, starting with the collection name
+     *
+     * @param collection collection name
+     * @param resultType result type
+     * @param operation kind of fetch
+     * @param modifiers limit and offset
+     * @param codecRegistry codec registry for rendering the query
+     * @return key
+     */
+    String toKey(String collection, Class<?> resultType, String operation, QueryModifiers modifiers,
+                 CodecRegistry codecRegistry) {
+        return collection + '|' + resultType.getName() + '|' + operation
+                + '|' + render(filter, codecRegistry)
+                + '|' + render(sort, codecRegistry)
+                + '|' + render(projection, codecRegistry)
+                + '|' + modifiers.getLimit() + '|' + modifiers.getOffset();
+    }
+
+    private static String render(@Nullable Bson bson, CodecRegistry codecRegistry) {
+        return bson == null ? "" : bson.toBsonDocument(BsonDocument.class, codecRegistry).toJson();
+    }
+
+}
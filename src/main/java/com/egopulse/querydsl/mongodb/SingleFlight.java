@@ -0,0 +1,74 @@
+package com.egopulse.querydsl.mongodb;
+
+import rx.Observable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code SingleFlight} lets identical concurrent reads share one server round trip.
+ * <p>
+ * A query subscribed to while an identical one is in flight receives the results of the in-flight query
+ * instead of being sent. Queries are identical if they have the same collection, result type, filter, sort,
+ * projection, limit and offset. The results of a flight are buffered until it terminates, requested from the
+ * server without limit. An instance is meant to be shared between queries,
+ * see {@link AsyncMongoQuery#singleFlight(SingleFlight)}.
+ */
+public class SingleFlight {
+
+    private final ConcurrentMap<String, Flight<?>> inFlight = new ConcurrentHashMap<String, Flight<?>>();
+
+    private final AtomicLong executed = new AtomicLong();
+
+    private final AtomicLong joined = new AtomicLong();
+
+    /**
+     * Run the given source, or attach to the identical source in flight
+     *
+     * @param key query key
+     * @param source query results
+     * @return shared results
+     */
+    <T> Observable<T> execute(String key, Observable<T> source) {
+        return Observable.defer(() -> {
+            Flight<T> flight = new Flight<T>();
+            flight.results = source.doOnTerminate(() -> inFlight.remove(key, flight)).cache();
+            @SuppressWarnings("unchecked")
+            Flight<T> existing = (Flight<T>) inFlight.putIfAbsent(key, flight);
+            if (existing != null) {
+                joined.incrementAndGet();
+                return existing.results;
+            }
+            executed.incrementAndGet();
+            return flight.results;
+        });
+    }
+
+    /**
+     * @return number of queries sent to the server
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return number of queries which attached to an identical query in flight
+     */
+    public long getJoinedCount() {
+        return joined.get();
+    }
+
+    /**
+     * @return number of queries in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static final class Flight<T> {
+
+        private Observable<T> results;
+    }
+
+}
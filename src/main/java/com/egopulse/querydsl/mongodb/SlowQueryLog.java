@@ -0,0 +1,214 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.rx.client.MongoDatabase;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code SlowQueryLog} aggregates query latencies per query fingerprint and explains sampled slow queries.
+ * <pre>
+ * SlowQueryLog slowQueries = new SlowQueryLog(database, 100, TimeUnit.MILLISECONDS, 0.1);
+ * MongoQuery.forDatabase(database).metrics(slowQueries)...
+ * ...
+ * for (QueryStats stats : slowQueries.getStats()) {
+ *     System.out.println(stats);
+ * }
+ * </pre>
+ * Statistics are kept per collection, operation and fingerprint, the fingerprint being the serialized filter and
+ * sort with the constant values replaced by {@code "?"}. A sampled fraction of the finds over the threshold is
+ * explained with {@code executionStats} verbosity, at most one at a time per fingerprint, and logged with the
+ * winning plan and the examined and returned documents. Other operations, which run other commands or on other
+ * databases, aren't explained.
+ * <p>
+ * Latencies are kept in HdrHistogram, an optional dependency, this class can only be used if it's on the classpath.
+ */
+public class SlowQueryLog implements QueryMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private static final BsonString PLACEHOLDER = new BsonString("?");
+
+    private static final Set<String> EXPLAINED_OPERATIONS = new HashSet<String>(Arrays.asList("find", "first", "page"));
+
+    private final MongoDatabase database;
+
+    private final CodecRegistry codecRegistry;
+
+    private final long thresholdMicros;
+
+    private final double explainRate;
+
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+
+    private final Map<String, QueryStats> stats = new ConcurrentHashMap<String, QueryStats>();
+
+    /**
+     * @param database database the explained queries run on
+     * @param threshold latency over which a query is slow
+     * @param unit time unit of the threshold
+     * @param explainRate fraction of slow queries to explain, between 0 and 1
+     */
+    public SlowQueryLog(MongoDatabase database, long threshold, TimeUnit unit, double explainRate) {
+        if (explainRate < 0 || explainRate > 1) {
+            throw new IllegalArgumentException("explainRate must be between 0 and 1, was " + explainRate);
+        }
+        this.database = database;
+        this.codecRegistry = database.getCodecRegistry();
+        this.thresholdMicros = unit.toMicros(threshold);
+        this.explainRate = explainRate;
+    }
+
+    @Override
+    public void record(QueryEvent event) {
+        String fingerprint = getFingerprint(event);
+        String key = event.getCollection() + ' ' + event.getOperation() + ' ' + fingerprint;
+        QueryStats queryStats = stats.get(key);
+        if (queryStats == null) {
+            stats.putIfAbsent(key, new QueryStats(event.getCollection(), event.getOperation(), fingerprint));
+            queryStats = stats.get(key);
+        }
+        long micros = event.getTotalTime(TimeUnit.MICROSECONDS);
+        boolean slow = micros >= thresholdMicros;
+        queryStats.record(micros, slow);
+        if (slow) {
+            logger.warn("Slow {} on {} took {} ms: {}", event.getOperation(), event.getCollection(), micros / 1000,
+                    fingerprint);
+            if (explainRate > 0 && EXPLAINED_OPERATIONS.contains(event.getOperation())
+                    && ThreadLocalRandom.current().nextDouble() < explainRate
+                    && queryStats.explaining.compareAndSet(false, true)) {
+                explain(event, queryStats);
+            }
+        }
+    }
+
+    private String getFingerprint(QueryEvent event) {
+        if (event.getShape().equals(QueryEvent.UNKNOWN_SHAPE)) {
+            return createFingerprint(event.getQuery());
+        }
+        String fingerprint = fingerprints.get(event.getShape());
+        if (fingerprint == null) {
+            fingerprint = createFingerprint(event.getQuery());
+            fingerprints.put(event.getShape(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private String createFingerprint(SerializedQuery query) {
+        return strip(render(query.getFilter())).toJson() + " sort " + render(query.getSort()).toJson();
+    }
+
+    private BsonDocument render(@Nullable Bson bson) {
+        return bson == null ? new BsonDocument() : bson.toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+    /**
+     * Replace the values of a filter with placeholders, keeping the fields, operators and nested conditions
+     */
+    static BsonDocument strip(BsonDocument filter) {
+        BsonDocument stripped = new BsonDocument();
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet()) {
+            stripped.append(entry.getKey(), strip(entry.getValue()));
+        }
+        return stripped;
+    }
+
+    private static BsonValue strip(BsonValue value) {
+        if (value.isDocument()) {
+            return strip(value.asDocument());
+        } else if (value.isArray() && !value.asArray().isEmpty() && value.asArray().get(0).isDocument()) {
+            BsonArray conditions = new BsonArray();
+            for (BsonValue condition : value.asArray()) {
+                conditions.add(strip(condition));
+            }
+            return conditions;
+        }
+        return PLACEHOLDER;
+    }
+
+    private void explain(QueryEvent event, QueryStats queryStats) {
+        SerializedQuery query = event.getQuery();
+        BsonDocument find = new BsonDocument("find", new BsonString(event.getCollection()))
+                .append("filter", render(query.getFilter()))
+                .append("sort", render(query.getSort()));
+        if (event.getModifiers().getLimit() != null) {
+            find.append("limit", new BsonInt32(event.getModifiers().getLimit().intValue()));
+        }
+        if (event.getModifiers().getOffset() != null) {
+            find.append("skip", new BsonInt32(event.getModifiers().getOffset().intValue()));
+        }
+        BsonDocument command = new BsonDocument("explain", find).append("verbosity", new BsonString("executionStats"));
+        database.runCommand(command, BsonDocument.class).subscribe(
+                explanation -> {
+                    BsonDocument winningPlan = explanation.getDocument("queryPlanner").getDocument("winningPlan");
+                    BsonDocument executionStats = explanation.getDocument("executionStats");
+                    String plan = getLeafStage(winningPlan);
+                    long examined = executionStats.getNumber("totalDocsExamined").longValue();
+                    long returned = executionStats.getNumber("nReturned").longValue();
+                    queryStats.explained(plan, examined, returned);
+                    logger.warn("Slow query on {} uses {}, examined {} documents for {} returned: {}",
+                            event.getCollection(), plan, examined, returned, queryStats.getFingerprint());
+                },
+                e -> {
+                    queryStats.explaining.set(false);
+                    logger.warn("Explain of slow query on " + event.getCollection() + " failed", e);
+                },
+                () -> queryStats.explaining.set(false));
+    }
+
+    /**
+     * Find the stage reading the documents, the one without input stages
+     */
+    static String getLeafStage(BsonDocument stage) {
+        if (stage.containsKey("inputStage")) {
+            return getLeafStage(stage.getDocument("inputStage"));
+        } else if (stage.containsKey("inputStages")) {
+            // index intersection and OR plans, report a collection scan if any branch scans
+            String leaf = null;
+            for (BsonValue input : stage.getArray("inputStages")) {
+                String inputLeaf = getLeafStage(input.asDocument());
+                if (leaf == null || inputLeaf.equals("COLLSCAN")) {
+                    leaf = inputLeaf;
+                }
+            }
+            return leaf != null ? leaf : stage.getString("stage").getValue();
+        }
+        return stage.getString("stage").getValue();
+    }
+
+    /**
+     * @return statistics of all fingerprints, the ones with the highest total time first
+     */
+    public List<QueryStats> getStats() {
+        List<QueryStats> ranked = new ArrayList<QueryStats>(stats.values());
+        ranked.sort(Comparator.comparingLong((QueryStats queryStats) -> queryStats.getTotalTime(TimeUnit.MICROSECONDS))
+                .reversed());
+        return ranked;
+    }
+
+    /**
+     * Discard all statistics
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.egopulse.querydsl.mongodb;
+
+import rx.Observable;
+import rx.Subscriber;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges sorted sources into one sorted stream, emitting an element only once every unfinished source has
+ * an element buffered.
+ * <p>
+ * Each source is requested at most {@code prefetch} elements ahead, so memory stays bounded by the number of
+ * sources regardless of their lengths. Elements comparing equal are emitted in source order.
+ *
+ * @param <T> element type
+ */
+final class SortedMerge<T> implements Observable.OnSubscribe<T> {
+
+    private final List<Observable<T>> sources;
+
+    private final Comparator<? super T> comparator;
+
+    private final int prefetch;
+
+    SortedMerge(List<Observable<T>> sources, Comparator<? super T> comparator, int prefetch) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be positive, was " + prefetch);
+        }
+        this.sources = sources;
+        this.comparator = comparator;
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public void call(Subscriber<? super T> child) {
+        MergeState<T> state = new MergeState<T>(child, comparator);
+        List<SourceSubscriber<T>> inputs = new ArrayList<SourceSubscriber<T>>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            SourceSubscriber<T> input = new SourceSubscriber<T>(state, prefetch);
+            child.add(input);
+            inputs.add(input);
+        }
+        state.inputs = inputs;
+        child.setProducer(state::request);
+        for (int i = 0; i < sources.size() && !child.isUnsubscribed(); i++) {
+            sources.get(i).unsafeSubscribe(inputs.get(i));
+        }
+    }
+
+    private static final class MergeState<T> {
+
+        private final Subscriber<? super T> child;
+
+        private final Comparator<? super T> comparator;
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        private List<SourceSubscriber<T>> inputs;
+
+        // guarded by this
+        private long requested;
+
+        MergeState(Subscriber<? super T> child, Comparator<? super T> comparator) {
+            this.child = child;
+            this.comparator = comparator;
+        }
+
+        void request(long n) {
+            if (n < 0) {
+                throw new IllegalArgumentException("n >= 0 required but it was " + n);
+            }
+            synchronized (this) {
+                requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+            }
+            drain();
+        }
+
+        void fail(Throwable e) {
+            error.compareAndSet(null, e);
+            drain();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                if (!emit()) {
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return false if the merge terminated
+         */
+        private boolean emit() {
+            while (true) {
+                if (child.isUnsubscribed()) {
+                    return false;
+                }
+                Throwable e = error.get();
+                if (e != null) {
+                    child.onError(e);
+                    child.unsubscribe();
+                    return false;
+                }
+                SourceSubscriber<T> min = null;
+                T minValue = null;
+                for (SourceSubscriber<T> input : inputs) {
+                    boolean done = input.done;
+                    T value = input.queue.peek();
+                    if (value == null) {
+                        if (done) {
+                            continue;
+                        }
+                        // the next element of this source may be the smallest
+                        return true;
+                    }
+                    if (min == null || comparator.compare(value, minValue) < 0) {
+                        min = input;
+                        minValue = value;
+                    }
+                }
+                if (min == null) {
+                    child.onCompleted();
+                    return false;
+                }
+                synchronized (this) {
+                    if (requested == 0) {
+                        return true;
+                    }
+                    if (requested != Long.MAX_VALUE) {
+                        requested--;
+                    }
+                }
+                min.queue.poll();
+                child.onNext(minValue);
+                min.consumed();
+            }
+        }
+    }
+
+    private static final class SourceSubscriber<T> extends Subscriber<T> {
+
+        private final MergeState<T> state;
+
+        private final int prefetch;
+
+        private final int replenish;
+
+        private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+
+        private volatile boolean done;
+
+        // accessed by the draining thread only
+        private int consumed;
+
+        SourceSubscriber(MergeState<T> state, int prefetch) {
+            this.state = state;
+            this.prefetch = prefetch;
+            this.replenish = (prefetch + 1) / 2;
+        }
+
+        @Override
+        public void onStart() {
+            request(prefetch);
+        }
+
+        void consumed() {
+            if (++consumed == replenish) {
+                consumed = 0;
+                request(replenish);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            queue.offer(t);
+            state.drain();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            state.fail(e);
+        }
+
+        @Override
+        public void onCompleted() {
+            done = true;
+            state.drain();
+        }
+    }
+
+}
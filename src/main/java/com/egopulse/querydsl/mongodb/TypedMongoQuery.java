@@ -0,0 +1,21 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.rx.client.MongoDatabase;
+
+/**
+ * {@code TypedMongoQuery} decodes results into the given entity type using the codecs generated
+ * by {@link MongoAnnotationProcessor}
+ *
+ * @param <K> result type
+ */
+public class TypedMongoQuery<K> extends AsyncMongoQuery<K, TypedMongoQuery<K>> {
+
+    protected TypedMongoQuery(MongoDatabase database, Class<K> entityClass) {
+        super(database, entityClass);
+    }
+
+    public static <K> TypedMongoQuery<K> forEntity(MongoDatabase database, Class<K> entityClass) {
+        return new TypedMongoQuery<K>(database, entityClass);
+    }
+
+}
@@ -0,0 +1,311 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.subjects.AsyncSubject;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code WriteCoalescer} collects single writes of concurrent callers into unordered bulk writes.
+ * <p>
+ * A bulk write is sent when {@code maxBatchSize} writes are pending or {@code maxDelay} after the first pending
+ * write, whichever comes first. Writes are queued when the methods are called, the returned observables complete
+ * when the bulk write containing the write completes, or fail with the caller's own {@link MongoWriteException}.
+ * Bulk writes don't report per operation counts, so an insert emits the {@code _id} of the inserted document, an
+ * update emits the {@code _id} of the upserted document if it upserted, and otherwise no value is emitted.
+ */
+public class WriteCoalescer implements AutoCloseable {
+
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    private final MongoCollection<Document> collection;
+
+    private final int maxBatchSize;
+
+    private final long maxDelay;
+
+    private final TimeUnit unit;
+
+    private final Scheduler.Worker worker;
+
+    private final Object lock = new Object();
+
+    private List<PendingWrite> pending = new ArrayList<PendingWrite>();
+
+    private Subscription scheduledFlush;
+
+    private boolean closed;
+
+    private final AtomicLong flushes = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong largestBatch = new AtomicLong();
+
+    private final AtomicLong flushNanos = new AtomicLong();
+
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+
+    public WriteCoalescer(MongoDatabase database, String collection, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        this(database, collection, maxBatchSize, maxDelay, unit, Schedulers.computation());
+    }
+
+    public WriteCoalescer(MongoDatabase database, String collection, int maxBatchSize, long maxDelay, TimeUnit unit,
+                          Scheduler scheduler) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive, was " + maxBatchSize);
+        }
+        this.collection = database.getCollection(collection)
+                .withCodecRegistry(GeneratedCodecProvider.withGeneratedCodecs(database.getCodecRegistry()));
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.unit = unit;
+        this.worker = scheduler.createWorker();
+    }
+
+    /**
+     * Queue an update
+     *
+     * @param clause update clause
+     * @return {@code _id} of the upserted document, or completion of the update
+     */
+    public Observable<BsonValue> update(AsyncMongoUpdateClause clause) {
+        return enqueue(clause.<Document>toWriteModel(), null);
+    }
+
+    /**
+     * Queue a delete
+     *
+     * @param clause delete clause
+     * @return completion of the delete
+     */
+    public Observable<BsonValue> delete(AsyncMongoDeleteClause clause) {
+        return enqueue(clause.<Document>toWriteModel(), null);
+    }
+
+    /**
+     * Queue an insert
+     *
+     * @param document document to insert, given an {@code ObjectId} if it has no {@code _id}
+     * @return {@code _id} of the inserted document
+     */
+    public Observable<BsonValue> insert(Document document) {
+        if (!document.containsKey("_id")) {
+            document.put("_id", new ObjectId());
+        }
+        BsonValue id = BsonDocumentWrapper.asBsonDocument(new Document("_id", document.get("_id")),
+                collection.getCodecRegistry()).get("_id");
+        return enqueue(new InsertOneModel<Document>(document), id);
+    }
+
+    private Observable<BsonValue> enqueue(WriteModel<Document> model, @Nullable BsonValue id) {
+        PendingWrite write = new PendingWrite(model, id);
+        List<PendingWrite> batch = null;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("WriteCoalescer is closed");
+            }
+            pending.add(write);
+            if (pending.size() >= maxBatchSize) {
+                batch = takePending();
+            } else if (pending.size() == 1) {
+                scheduledFlush = worker.schedule(this::flush, maxDelay, unit);
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        return write.result.asObservable();
+    }
+
+    /**
+     * Send the pending writes now
+     */
+    public void flush() {
+        List<PendingWrite> batch;
+        synchronized (lock) {
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private List<PendingWrite> takePending() {
+        List<PendingWrite> batch = pending;
+        pending = new ArrayList<PendingWrite>();
+        if (scheduledFlush != null) {
+            scheduledFlush.unsubscribe();
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void send(List<PendingWrite> batch) {
+        List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>(batch.size());
+        for (PendingWrite write : batch) {
+            models.add(write.model);
+        }
+        long start = System.nanoTime();
+        collection.bulkWrite(models, UNORDERED).subscribe(
+                result -> {
+                    record(batch.size(), System.nanoTime() - start);
+                    Map<Integer, BsonValue> upserts = upserts(result);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).complete(upserts.get(i));
+                    }
+                },
+                e -> {
+                    record(batch.size(), System.nanoTime() - start);
+                    fail(batch, e);
+                });
+    }
+
+    private static Map<Integer, BsonValue> upserts(BulkWriteResult result) {
+        Map<Integer, BsonValue> upserts = new HashMap<Integer, BsonValue>();
+        if (result.isAcknowledged()) {
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                upserts.put(upsert.getIndex(), upsert.getId());
+            }
+        }
+        return upserts;
+    }
+
+    private static void fail(List<PendingWrite> batch, Throwable e) {
+        if (!(e instanceof MongoBulkWriteException)) {
+            for (PendingWrite write : batch) {
+                write.result.onError(e);
+            }
+            return;
+        }
+        MongoBulkWriteException bulkError = (MongoBulkWriteException) e;
+        Map<Integer, BulkWriteError> errors = new HashMap<Integer, BulkWriteError>();
+        for (BulkWriteError error : bulkError.getWriteErrors()) {
+            errors.put(error.getIndex(), error);
+        }
+        Map<Integer, BsonValue> upserts = upserts(bulkError.getWriteResult());
+        for (int i = 0; i < batch.size(); i++) {
+            BulkWriteError error = errors.get(i);
+            if (error != null) {
+                batch.get(i).result.onError(new MongoWriteException(error, bulkError.getServerAddress()));
+            } else if (bulkError.getWriteConcernError() != null) {
+                batch.get(i).result.onError(bulkError);
+            } else {
+                batch.get(i).complete(upserts.get(i));
+            }
+        }
+    }
+
+    private void record(int batchSize, long nanos) {
+        flushes.incrementAndGet();
+        writes.addAndGet(batchSize);
+        flushNanos.addAndGet(nanos);
+        largestBatch.accumulateAndGet(batchSize, Math::max);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return number of bulk writes sent and completed
+     */
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * @return number of writes in completed bulk writes
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * @return average number of writes per bulk write
+     */
+    public double getAverageBatchSize() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) writes.get() / count;
+    }
+
+    /**
+     * @return largest number of writes in a bulk write
+     */
+    public long getLargestBatchSize() {
+        return largestBatch.get();
+    }
+
+    /**
+     * @param unit time unit
+     * @return average time from sending a bulk write to its completion
+     */
+    public long getAverageFlushLatency(TimeUnit unit) {
+        long count = flushes.get();
+        return count == 0 ? 0 : unit.convert(flushNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit time unit
+     * @return longest time from sending a bulk write to its completion
+     */
+    public long getMaxFlushLatency(TimeUnit unit) {
+        return unit.convert(maxFlushNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Send the pending writes and reject further writes
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        flush();
+        worker.unsubscribe();
+    }
+
+    private static final class PendingWrite {
+
+        private final WriteModel<Document> model;
+
+        @Nullable
+        private final BsonValue id;
+
+        private final AsyncSubject<BsonValue> result = AsyncSubject.create();
+
+        PendingWrite(WriteModel<Document> model, @Nullable BsonValue id) {
+            this.model = model;
+            this.id = id;
+        }
+
+        void complete(@Nullable BsonValue upsertedId) {
+            BsonValue value = id != null ? id : upsertedId;
+            if (value != null) {
+                result.onNext(value);
+            }
+            result.onCompleted();
+        }
+    }
+
+}
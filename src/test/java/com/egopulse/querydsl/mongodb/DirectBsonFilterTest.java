@@ -0,0 +1,78 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.egopulse.querydsl.mongodb.domain.QUser;
+import com.egopulse.querydsl.mongodb.domain.User;
+import com.mongodb.async.client.MongoClientSettings;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DirectBsonFilterTest {
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+    private final CodecRegistry codecRegistry = MongoClientSettings.builder().build().getCodecRegistry();
+
+    private final QUser user = QUser.user;
+
+    @Test
+    public void comparisons() {
+        assertWrittenAs(user.firstName.eq("Jaana"));
+        assertWrittenAs(user.firstName.ne("Jaana").and(user.age.gt(10)).and(user.created.lt(new Date(0))));
+        assertWrittenAs(user.age.loe(10).and(user.lastName.goe("J")));
+        assertWrittenAs(user.age.between(1, 5));
+        assertWrittenAs(user.gender.eq(User.Gender.MALE).and(user.firstName.isEmpty()));
+        assertWrittenAs(user.firstName.isNull().and(user.lastName.isNotNull()));
+    }
+
+    @Test
+    public void collections() {
+        assertWrittenAs(user.lastName.in(Arrays.asList("a", "b")).and(user.firstName.notIn("x", "y")));
+        assertWrittenAs(user.addresses.size().eq(2));
+        assertWrittenAs(user.addresses.isEmpty().and(user.age.eq(1)));
+    }
+
+    @Test
+    public void textMatching() {
+        assertWrittenAs(user.firstName.startsWith("Ja").and(user.lastName.endsWithIgnoreCase("nen")));
+        assertWrittenAs(user.firstName.like("J%a_").or(user.lastName.containsIgnoreCase("*")));
+        assertWrittenAs(user.firstName.matches("^J.*"));
+    }
+
+    @Test
+    public void nestedAndMergedClauses() {
+        assertWrittenAs(user.firstName.eq("a").or(user.firstName.eq("b").and(user.age.gt(3))));
+        assertWrittenAs(user.age.gt(1).and(user.age.lt(5)));
+        assertWrittenAs(user.age.eq(1).and(user.age.gt(5)));
+        assertWrittenAs(user.firstName.eq("a").or(user.age.eq(1)).and(user.lastName.eq("b").or(user.age.eq(2))));
+        assertWrittenAs(user.firstName.eq("a").not().and(user.lastName.in("x", "y").not()));
+    }
+
+    private void assertWrittenAs(Predicate predicate) {
+        BsonDocument expected = ((Bson) serializer.handle(predicate)).toBsonDocument(BsonDocument.class, codecRegistry);
+        DirectBsonFilter filter = new DirectBsonFilter(predicate);
+
+        assertEquals(expected, filter.toBsonDocument(BsonDocument.class, codecRegistry));
+        RawBsonDocument raw = filter.toRawBsonDocument(codecRegistry);
+        RawBsonDocument expectedRaw = new RawBsonDocument(expected, new BsonDocumentCodec());
+        assertArrayEquals(toBytes(expectedRaw), toBytes(raw));
+    }
+
+    private static byte[] toBytes(RawBsonDocument document) {
+        ByteBuffer buffer = document.getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.egopulse.querydsl.mongodb.domain.QUser;
+import com.mongodb.async.client.MongoClientSettings;
+import com.querydsl.core.types.Predicate;
+import org.bson.BsonDocument;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OplogTailTest {
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+    private final CodecRegistry codecRegistry = MongoClientSettings.builder().build().getCodecRegistry();
+
+    private final QUser user = QUser.user;
+
+    @Test
+    public void prefix() {
+        BsonDocument filter = toFilter(user.firstName.eq("Jaana").and(user.age.gt(10).or(user.lastName.eq("Aakkonen"))));
+
+        assertEquals(BsonDocument.parse("{ 'o.firstName' : 'Jaana', '$or' : [ { 'o.age' : { '$gt' : 10 } }, "
+                        + "{ 'o.lastName' : 'Aakkonen' } ] }"),
+                OplogTail.prefix(filter, "o."));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixUnsupported() {
+        OplogTail.prefix(BsonDocument.parse("{ '$where' : 'true' }"), "o.");
+    }
+
+    private BsonDocument toFilter(Predicate predicate) {
+        return ((Bson) serializer.handle(predicate)).toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.egopulse.querydsl.mongodb.domain.QUser;
+import com.egopulse.querydsl.mongodb.domain.User;
+import com.mongodb.async.client.MongoClientSettings;
+import com.querydsl.core.types.OrderSpecifier;
+import com.querydsl.core.types.ParamExpression;
+import com.querydsl.core.types.ParamNotSetException;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.dsl.Param;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryPlanCacheTest {
+
+    private final MongodbSerializer serializer = new MongodbSerializer();
+    private final CodecRegistry codecRegistry = MongoClientSettings.builder().build().getCodecRegistry();
+
+    private final QUser user = QUser.user;
+
+    @Test
+    public void sameShapeIsCompiledOnce() {
+        QueryPlanCache cache = new QueryPlanCache();
+        List<OrderSpecifier<?>> orderBy = Collections.singletonList(user.lastName.asc());
+
+        assertSerializedAs(cache, user.firstName.eq("Jaana").and(user.age.gt(10)), orderBy);
+        assertSerializedAs(cache, user.firstName.eq("Jaakko").and(user.age.gt(20)), orderBy);
+        assertSerializedAs(cache, user.firstName.eq("Jaakki").and(user.age.gt(30)), orderBy);
+
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void constantsAreBound() {
+        QueryPlanCache cache = new QueryPlanCache();
+        List<OrderSpecifier<?>> orderBy = Collections.emptyList();
+
+        assertSerializedAs(cache, user.firstName.startsWith("Ja").or(user.lastName.containsIgnoreCase("nen")), orderBy);
+        assertSerializedAs(cache, user.firstName.startsWith("B.").or(user.lastName.containsIgnoreCase("*")), orderBy);
+        assertSerializedAs(cache, user.firstName.like("J%a_"), orderBy);
+        assertSerializedAs(cache, user.firstName.like("%x"), orderBy);
+        assertSerializedAs(cache, user.lastName.in(Arrays.asList("a", "b")).and(user.gender.eq(User.Gender.MALE)), orderBy);
+        assertSerializedAs(cache, user.lastName.in(Arrays.asList("c", "d", "e")).and(user.gender.eq(User.Gender.FEMALE)), orderBy);
+        assertSerializedAs(cache, user.age.between(1, 5).and(user.firstName.notIn("x", "y")), orderBy);
+        assertSerializedAs(cache, user.age.between(7, 9).and(user.firstName.notIn("z", "w")), orderBy);
+
+        assertEquals(4, cache.getHitCount());
+    }
+
+    @Test
+    public void structuralConstantsArePartOfTheShape() {
+        QueryPlanCache cache = new QueryPlanCache();
+        List<OrderSpecifier<?>> orderBy = Collections.emptyList();
+
+        assertSerializedAs(cache, user.addresses.size().eq(1).and(user.age.eq(1)), orderBy);
+        assertSerializedAs(cache, user.addresses.size().eq(2).and(user.age.eq(1)), orderBy);
+
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void parametersAreBound() {
+        QueryPlanCache cache = new QueryPlanCache();
+        Param<String> firstName = new Param<String>(String.class, "firstName");
+        Predicate parameterized = user.firstName.startsWith(firstName).and(user.age.gt(18));
+
+        for (String value : Arrays.asList("Ja", "Be")) {
+            SerializedQuery query = cache.serialize(parameterized, Collections.<OrderSpecifier<?>>emptyList(), null,
+                    Collections.<ParamExpression<?>, Object>singletonMap(firstName, value));
+            Bson expected = (Bson) serializer.handle(user.firstName.startsWith(value).and(user.age.gt(18)));
+            assertEquals(render(expected), render(query.getFilter()));
+        }
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void boundFiltersDontShareTheTemplate() {
+        QueryPlanCache cache = new QueryPlanCache();
+        List<OrderSpecifier<?>> orderBy = Collections.emptyList();
+
+        BsonDocument first = render(cache.serialize(user.firstName.eq("Jaana").and(user.age.gt(10)), orderBy, null)
+                .getFilter());
+        for (BsonValue value : first.values()) {
+            if (value.isDocument()) {
+                value.asDocument().clear();
+            }
+        }
+        first.clear();
+        assertSerializedAs(cache, user.firstName.eq("Jaakko").and(user.age.gt(20)), orderBy);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test(expected = ParamNotSetException.class)
+    public void unboundParameter() {
+        Param<String> firstName = new Param<String>(String.class, "firstName");
+        render(new QueryPlanCache().serialize(user.firstName.eq(firstName), Collections.<OrderSpecifier<?>>emptyList(), null)
+                .getFilter());
+    }
+
+    private void assertSerializedAs(QueryPlanCache cache, Predicate predicate, List<OrderSpecifier<?>> orderBy) {
+        SerializedQuery query = cache.serialize(predicate, orderBy, null);
+        assertEquals(render((Bson) serializer.handle(predicate)), render(query.getFilter()));
+        assertEquals(render(serializer.toSort(orderBy)), render(query.getSort()));
+    }
+
+    private BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, codecRegistry);
+    }
+
+}
@@ -1,13 +1,23 @@
 package com.egopulse.querydsl.mongodb;
 
+import com.egopulse.querydsl.mongodb.domain.Address;
+import com.egopulse.querydsl.mongodb.domain.City;
 import com.egopulse.querydsl.mongodb.domain.User;
 import com.jayway.awaitility.Awaitility;
 import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.result.UpdateResult;
 import com.egopulse.querydsl.mongodb.domain.QUser;
 import com.mongodb.rx.client.MongoClient;
 import com.mongodb.rx.client.MongoClients;
 import com.mongodb.rx.client.MongoCollection;
 import com.mongodb.rx.client.MongoDatabase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import de.flapdoodle.embed.mongo.MongodExecutable;
 import de.flapdoodle.embed.mongo.MongodProcess;
 import de.flapdoodle.embed.mongo.MongodStarter;
@@ -16,19 +26,41 @@ import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
 import de.flapdoodle.embed.mongo.config.Net;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
+import com.querydsl.core.QueryResults;
+import com.querydsl.core.Tuple;
+import com.querydsl.core.types.dsl.Param;
 import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mongodb.morphia.Morphia;
 import rx.Observable;
 import rx.Single;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SimpleMongoAsyncTest {
 
@@ -46,9 +78,9 @@ public class SimpleMongoAsyncTest {
     private static final String COLLECTION_NAME = "user";
 
     public SimpleMongoAsyncTest() throws IOException {
-        // Start embeded mongo
+        // Start embeded mongo, $lookup, $sample and exclusion of fields in $project need 3.4
         config = new MongodConfigBuilder()
-                .version(Version.Main.PRODUCTION)
+                .version(Version.Main.V3_4)
                 .net(new Net(27018, Network.localhostIsIPv6()))
                 .build();
         exe = MongodStarter.getDefaultInstance().prepare(config);
@@ -111,6 +143,610 @@ public class SimpleMongoAsyncTest {
         Awaitility.await().untilTrue(finished);
     }
 
+    @Test
+    public void streamTest() {
+        TestSubscriber<Document> subscriber = new TestSubscriber<>(0);
+
+        MongoQuery.forDatabase(database)
+                .batchSize(1)
+                .streamFrom(COLLECTION_NAME)
+                .subscribe(subscriber);
+
+        // the delay before the first check lets documents exceeding the demand arrive
+        Awaitility.await().pollDelay(100, TimeUnit.MILLISECONDS)
+                .until(() -> subscriber.getOnNextEvents().isEmpty());
+        subscriber.requestMore(1);
+        Awaitility.await().pollDelay(100, TimeUnit.MILLISECONDS)
+                .until(() -> subscriber.getOnNextEvents().size() == 1);
+        subscriber.requestMore(2);
+        Awaitility.await().pollDelay(100, TimeUnit.MILLISECONDS)
+                .until(() -> subscriber.getOnNextEvents().size() == 3);
+        subscriber.assertNoTerminalEvent();
+
+        subscriber.requestMore(1);
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        subscriber.assertNoErrors();
+        subscriber.assertCompleted();
+        subscriber.assertValueCount(4);
+    }
+
+    @Test
+    public void typedTest() {
+        AtomicReference<List<User>> users = new AtomicReference<>();
+
+        TypedMongoQuery.forEntity(database, User.class)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME)
+                .subscribe(users::set);
+
+        Awaitility.await().untilAtomic(users, notNullValue());
+        assertEquals(2, users.get().size());
+        for (User user : users.get()) {
+            assertEquals("Jaana", user.getFirstName());
+            assertNotNull(user.getId());
+            assertNotNull(user.getCreated());
+        }
+    }
+
+    @Test
+    public void preparedTest() {
+        Param<String> lastName = new Param<String>(String.class, "lastName");
+        PreparedMongoQuery<User> query = TypedMongoQuery.forEntity(database, User.class)
+                .where(QUser.user.lastName.eq(lastName))
+                .prepare(COLLECTION_NAME);
+
+        List<User> jantunens = query.fetch(lastName, "Jantunen").toBlocking().single();
+        List<User> aakkonens = query.fetch(lastName, "Aakkonen").toBlocking().single();
+
+        assertEquals(2, jantunens.size());
+        assertEquals(1, aakkonens.size());
+    }
+
+    @Test
+    public void countTest() {
+        long all = MongoQuery.forDatabase(database).fetchCount(COLLECTION_NAME).toBlocking().single();
+        long jaanas = MongoQuery.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchCount(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(4, all);
+        assertEquals(2, jaanas);
+    }
+
+    @Test
+    public void existsTest() {
+        assertTrue(MongoQuery.forDatabase(database)
+                .where(QUser.user.lastName.eq("Aakkonen"))
+                .exists(COLLECTION_NAME).toBlocking().single());
+        assertFalse(MongoQuery.forDatabase(database)
+                .where(QUser.user.lastName.eq("Virtanen"))
+                .exists(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void resultsTest() {
+        QueryResults<Document> results = MongoQuery.forDatabase(database)
+                .orderBy(QUser.user.firstName.asc())
+                .limit(2)
+                .offset(1)
+                .fetchResults(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(4, results.getTotal());
+        assertEquals(2, results.getResults().size());
+        assertEquals("Jaakko", results.getResults().get(0).getString("firstName"));
+    }
+
+    @Test
+    public void keysetTest() {
+        KeysetPage<User> first = TypedMongoQuery.forEntity(database, User.class)
+                .orderBy(QUser.user.lastName.desc())
+                .fetchPage(COLLECTION_NAME, 3, null).toBlocking().single();
+
+        assertEquals(3, first.getResults().size());
+        assertEquals("Jantunen", first.getResults().get(0).getLastName());
+        assertEquals("BeekkoNen", first.getResults().get(2).getLastName());
+        assertTrue(first.hasNext());
+
+        KeysetPage<User> second = TypedMongoQuery.forEntity(database, User.class)
+                .orderBy(QUser.user.lastName.desc())
+                .fetchPage(COLLECTION_NAME, 3, first.getContinuation()).toBlocking().single();
+
+        assertEquals(1, second.getResults().size());
+        assertEquals("Aakkonen", second.getResults().get(0).getLastName());
+        assertFalse(second.hasNext());
+    }
+
+    @Test
+    public void keysetProjectionTest() {
+        KeysetPage<User> page = TypedMongoQuery.forEntity(database, User.class)
+                .orderBy(QUser.user.lastName.desc())
+                .fetchPage(COLLECTION_NAME, 3, null, QUser.user.lastName).toBlocking().single();
+        assertEquals(3, page.getResults().size());
+        assertEquals(null, page.getResults().get(0).getFirstName());
+        assertTrue(page.hasNext());
+
+        try {
+            TypedMongoQuery.forEntity(database, User.class)
+                    .orderBy(QUser.user.lastName.desc())
+                    .fetchPage(COLLECTION_NAME, 10, null, QUser.user.firstName);
+            fail("Projection without the sort key must be rejected before the last page");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("lastName"));
+        }
+    }
+
+    @Test
+    public void joinTest() {
+        MongoCollection<Document> friends = database.getCollection("User");
+        ObjectId friendId = new ObjectId();
+        friends.insertOne(new Document("_id", friendId).append("firstName", "Ystava")).toBlocking().single();
+        collection.insertOne(new Document("firstName", "Kaveri").append("friend", new DBRef("User", friendId)))
+                .toBlocking().single();
+        try {
+            QUser friend = new QUser("friend");
+            JoinIdCache cache = new JoinIdCache(1, TimeUnit.MINUTES);
+
+            List<Document> users = MongoQuery.forDatabase(database)
+                    .joinIdCache(cache)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchFrom(COLLECTION_NAME).toBlocking().single();
+            long count = MongoQuery.forDatabase(database)
+                    .joinIdCache(cache)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchCount(COLLECTION_NAME).toBlocking().single();
+            List<Document> none = MongoQuery.forDatabase(database)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Vihollinen"))
+                    .fetchFrom(COLLECTION_NAME).toBlocking().single();
+
+            assertEquals(1, users.size());
+            assertEquals("Kaveri", users.get(0).getString("firstName"));
+            assertEquals(1, count);
+            assertEquals(1, cache.getHitCount());
+            assertTrue(none.isEmpty());
+
+            // each subscription resolves the join again
+            Observable<List<Document>> resubscribed = MongoQuery.forDatabase(database)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchFrom(COLLECTION_NAME);
+            assertEquals(1, resubscribed.toBlocking().single().size());
+            ObjectId otherId = new ObjectId();
+            friends.insertOne(new Document("_id", otherId).append("firstName", "Ystava")).toBlocking().single();
+            collection.insertOne(new Document("firstName", "Toveri").append("friend", new DBRef("User", otherId)))
+                    .toBlocking().single();
+            assertEquals(2, resubscribed.toBlocking().single().size());
+        } finally {
+            friends.drop().toBlocking().single();
+        }
+    }
+
+    @Test
+    public void lookupJoinTest() {
+        MongoCollection<Document> friends = database.getCollection("User");
+        ObjectId friendId = new ObjectId();
+        friends.insertOne(new Document("_id", friendId).append("firstName", "Ystava")).toBlocking().single();
+        collection.insertOne(new Document("firstName", "Kaveri").append("friend", friendId)).toBlocking().single();
+        // client-side joins match DBRefs, $lookup matches plain ids
+        collection.insertOne(new Document("firstName", "Kaveri").append("friend", new DBRef("User", friendId)))
+                .toBlocking().single();
+        try {
+            QUser friend = new QUser("friend");
+
+            List<Document> users = MongoQuery.forDatabase(database)
+                    .lookupJoins(true)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchFrom(COLLECTION_NAME).toBlocking().single();
+            List<Document> clientSide = MongoQuery.forDatabase(database)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchFrom(COLLECTION_NAME).toBlocking().single();
+            long count = MongoQuery.forDatabase(database)
+                    .lookupJoins(true)
+                    .join(QUser.user.friend, friend).on(friend.firstName.eq("Vihollinen"))
+                    .fetchCount(COLLECTION_NAME).toBlocking().single();
+
+            assertEquals(1, users.size());
+            assertEquals("Kaveri", users.get(0).getString("firstName"));
+            assertEquals(0, count);
+            assertEquals(1, clientSide.size());
+            // the same documents apart from the id and the form of the reference
+            assertEquals(clientSide.get(0).keySet(), users.get(0).keySet());
+            for (Document document : Arrays.asList(users.get(0), clientSide.get(0))) {
+                document.remove("_id");
+                document.remove("friend");
+            }
+            assertEquals(clientSide.get(0), users.get(0));
+
+            // a join over a collection of references matches each root document once
+            ObjectId otherFriendId = new ObjectId();
+            friends.insertOne(new Document("_id", otherFriendId).append("firstName", "Ystava")).toBlocking().single();
+            collection.insertOne(new Document("firstName", "Seurallinen")
+                    .append("friends", Arrays.asList(friendId, otherFriendId))).toBlocking().single();
+            long withFriends = MongoQuery.forDatabase(database)
+                    .lookupJoins(true)
+                    .join(QUser.user.friends, friend).on(friend.firstName.eq("Ystava"))
+                    .fetchCount(COLLECTION_NAME).toBlocking().single();
+            List<Document> sociable = MongoQuery.forDatabase(database)
+                    .lookupJoins(true)
+                    .join(QUser.user.friends, friend).on()
+                    .fetchFrom(COLLECTION_NAME).toBlocking().single();
+
+            assertEquals(1, withFriends);
+            assertEquals(1, sociable.size());
+            assertEquals("Seurallinen", sociable.get(0).getString("firstName"));
+        } finally {
+            friends.drop().toBlocking().single();
+        }
+    }
+
+    @Test
+    public void aggregateTest() {
+        QUser user = QUser.user;
+        List<Tuple> groups = MongoAggregateQuery.forDatabase(database)
+                .where(user.firstName.startsWith("J"))
+                .groupBy(user.lastName)
+                .orderBy(user.count().desc(), user.lastName.asc())
+                .fetchFrom(COLLECTION_NAME, user.lastName, user.count(), user.created.max())
+                .toBlocking().single();
+
+        assertEquals(3, groups.size());
+        assertEquals("Jantunen", groups.get(0).get(user.lastName));
+        assertEquals(Long.valueOf(2), groups.get(0).get(user.count()));
+        assertNotNull(groups.get(0).get(user.created.max()));
+        assertEquals("Aakkonen", groups.get(1).get(user.lastName));
+        assertEquals(Long.valueOf(1), groups.get(1).get(user.count()));
+    }
+
+    @Test
+    public void distinctTest() {
+        List<String> lastNames = MongoQuery.forDatabase(database)
+                .fetchDistinct(COLLECTION_NAME, QUser.user.lastName)
+                .toList().toBlocking().single();
+        List<String> jaanas = MongoQuery.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchDistinct(COLLECTION_NAME, QUser.user.lastName)
+                .toList().toBlocking().single();
+
+        assertEquals(3, lastNames.size());
+        assertEquals(2, jaanas.size());
+        assertTrue(jaanas.contains("Aakkonen"));
+    }
+
+    @Test
+    public void updateTest() {
+        UpdateResult result = AsyncMongoUpdateClause.forDatabase(database)
+                .where(QUser.user.lastName.eq("Jantunen"))
+                .set(QUser.user.gender, User.Gender.MALE)
+                .inc(QUser.user.age, 2)
+                .executeOn(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(2, result.getMatchedCount());
+        assertEquals(2, (long) MongoQuery.forDatabase(database)
+                .where(QUser.user.gender.eq(User.Gender.MALE), QUser.user.age.eq(2))
+                .fetchCount(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void updateEntityTest() {
+        Address address = new Address("Mannerheimintie 1", "00100", new City("Helsinki", 60.17, 24.94));
+        UpdateResult result = AsyncMongoUpdateClause.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaakko"))
+                .set(QUser.user.mainAddress, address)
+                .executeOn(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(1, result.getModifiedCount());
+        User jaakko = TypedMongoQuery.forEntity(database, User.class)
+                .where(QUser.user.firstName.eq("Jaakko"))
+                .fetchOneFrom(COLLECTION_NAME).toBlocking().single();
+        assertEquals("Mannerheimintie 1", jaakko.getMainAddress().street);
+        assertEquals("Helsinki", jaakko.getMainAddress().city.name);
+    }
+
+    @Test
+    public void bulkWriteErrorsTest() {
+        ObjectId id = new ObjectId();
+        AsyncMongoBulkWrite bulk = AsyncMongoBulkWrite.forDatabase(database).ordered(false).chunkSize(2);
+        bulk.insert(new Document("_id", id).append("firstName", "Matti"));
+        bulk.insert(new Document("_id", id).append("firstName", "Teppo"));
+        bulk.insert(new Document("firstName", "Seppo"));
+        bulk.insert(new Document("_id", id).append("firstName", "Pekka"));
+
+        try {
+            bulk.executeOn(COLLECTION_NAME).toBlocking().single();
+            fail("Duplicate ids were inserted");
+        } catch (MongoBulkWriteException e) {
+            // both chunks ran to completion, the indexes are among all writes
+            assertEquals(2, e.getWriteResult().getInsertedCount());
+            assertEquals(2, e.getWriteErrors().size());
+            assertEquals(1, e.getWriteErrors().get(0).getIndex());
+            assertEquals(3, e.getWriteErrors().get(1).getIndex());
+        }
+        assertEquals(6, (long) MongoQuery.forDatabase(database).fetchCount(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void bulkWriteTest() {
+        AsyncMongoBulkWrite bulk = AsyncMongoBulkWrite.forDatabase(database).ordered(false).chunkSize(2);
+        bulk.update().where(QUser.user.firstName.eq("Jaakko")).set(QUser.user.lastName, "Virtanen");
+        bulk.update().where(QUser.user.firstName.eq("Jaakki")).unset(QUser.user.created);
+        bulk.delete().where(QUser.user.lastName.eq("Aakkonen"));
+        bulk.insert(new Document("firstName", "Matti").append("lastName", "Meikalainen"));
+        bulk.add(AsyncMongoUpdateClause.forDatabase(database)
+                .where(QUser.user.firstName.eq("Pekka"))
+                .set(QUser.user.lastName, "Puupaa")
+                .upsert(true));
+
+        BulkWriteResult result = bulk.executeOn(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(2, result.getMatchedCount());
+        assertEquals(1, result.getDeletedCount());
+        assertEquals(1, result.getInsertedCount());
+        assertEquals(1, result.getUpserts().size());
+        assertEquals(4, result.getUpserts().get(0).getIndex());
+        assertEquals(5, (long) MongoQuery.forDatabase(database).fetchCount(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void coalescerTest() {
+        try (WriteCoalescer coalescer = new WriteCoalescer(database, COLLECTION_NAME, 3, 50, TimeUnit.MILLISECONDS)) {
+            Observable.merge(
+                    coalescer.insert(new Document("firstName", "Matti")),
+                    coalescer.insert(new Document("firstName", "Teppo")),
+                    coalescer.update(AsyncMongoUpdateClause.forDatabase(database)
+                            .where(QUser.user.firstName.eq("Jaana"))
+                            .set(QUser.user.age, 30)),
+                    coalescer.delete(AsyncMongoDeleteClause.forDatabase(database)
+                            .where(QUser.user.firstName.eq("Jaakko"))))
+                    .toBlocking().lastOrDefault(null);
+
+            assertEquals(2, coalescer.getFlushCount());
+            assertEquals(4, coalescer.getWriteCount());
+            assertEquals(3, coalescer.getLargestBatchSize());
+        }
+        assertEquals(5, (long) MongoQuery.forDatabase(database).fetchCount(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void coalescerResultTest() {
+        ObjectId existing = new ObjectId();
+        collection.insertOne(new Document("_id", existing).append("firstName", "Matti")).toBlocking().single();
+        try (WriteCoalescer coalescer = new WriteCoalescer(database, COLLECTION_NAME, 3, 50, TimeUnit.MILLISECONDS)) {
+            Document inserted = new Document("firstName", "Teppo");
+            TestSubscriber<BsonValue> insert = new TestSubscriber<BsonValue>();
+            TestSubscriber<BsonValue> duplicate = new TestSubscriber<BsonValue>();
+            TestSubscriber<BsonValue> upsert = new TestSubscriber<BsonValue>();
+            coalescer.insert(inserted).subscribe(insert);
+            coalescer.insert(new Document("_id", existing).append("firstName", "Seppo")).subscribe(duplicate);
+            coalescer.update(AsyncMongoUpdateClause.forDatabase(database)
+                    .where(QUser.user.firstName.eq("Pekka"))
+                    .set(QUser.user.lastName, "Puupaa")
+                    .upsert(true)).subscribe(upsert);
+
+            insert.awaitTerminalEvent(5, TimeUnit.SECONDS);
+            duplicate.awaitTerminalEvent(5, TimeUnit.SECONDS);
+            upsert.awaitTerminalEvent(5, TimeUnit.SECONDS);
+
+            insert.assertNoErrors();
+            insert.assertValue(new BsonObjectId(inserted.getObjectId("_id")));
+            duplicate.assertNoValues();
+            assertEquals(MongoWriteException.class, duplicate.getOnErrorEvents().get(0).getClass());
+            upsert.assertNoErrors();
+            assertEquals(1, upsert.getOnNextEvents().size());
+            assertEquals(1, coalescer.getFlushCount());
+        }
+        assertEquals(1, (long) MongoQuery.forDatabase(database).where(QUser.user.firstName.eq("Matti"))
+                .fetchCount(COLLECTION_NAME).toBlocking().single());
+        assertEquals(7, (long) MongoQuery.forDatabase(database).fetchCount(COLLECTION_NAME).toBlocking().single());
+    }
+
+    @Test
+    public void singleFlightTest() {
+        SingleFlight singleFlight = new SingleFlight();
+        Observable<List<Document>> first = MongoQuery.forDatabase(database)
+                .singleFlight(singleFlight)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME);
+        Observable<List<Document>> second = MongoQuery.forDatabase(database)
+                .singleFlight(singleFlight)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME);
+
+        List<List<Document>> results = Observable.merge(first, second).toList().toBlocking().single();
+
+        assertEquals(2, results.size());
+        assertEquals(2, results.get(0).size());
+        assertEquals(results.get(0), results.get(1));
+        assertEquals(1, singleFlight.getExecutedCount());
+        assertEquals(1, singleFlight.getJoinedCount());
+        assertEquals(0, singleFlight.getInFlightCount());
+
+        MongoQuery.forDatabase(database)
+                .singleFlight(singleFlight)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+        assertEquals(2, singleFlight.getExecutedCount());
+    }
+
+    @Test
+    public void resultCacheTest() {
+        ResultCache cache = new ResultCache(100, 1, TimeUnit.MINUTES).cacheCollections(COLLECTION_NAME);
+        Func0<List<Document>> jaanas = () -> MongoQuery.forDatabase(database)
+                .resultCache(cache)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+
+        List<Document> first = jaanas.call();
+        assertEquals(2, first.size());
+        first.get(0).put("firstName", "Muutettu");
+        addUser("Jaana", "Virtanen").toBlocking().single();
+        List<Document> second = jaanas.call();
+        assertEquals(2, second.size());
+        // callers don't share the cached instances
+        assertEquals("Jaana", second.get(0).getString("firstName"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.invalidate(COLLECTION_NAME);
+        assertEquals(0, cache.size());
+        assertEquals(3, jaanas.call().size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void tailTest() throws Exception {
+        database.getCollection("events").drop().toBlocking().single();
+        database.createCollection("events", new CreateCollectionOptions().capped(true).sizeInBytes(100000))
+                .toBlocking().single();
+        MongoCollection<Document> events = database.getCollection("events");
+        events.insertOne(new Document("firstName", "Jaana")).toBlocking().single();
+
+        Future<List<Document>> tailed = MongoQuery.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .tailFrom("events")
+                .take(2).toList().toBlocking().toFuture();
+        events.insertOne(new Document("firstName", "Matti")).toBlocking().single();
+        events.insertOne(new Document("firstName", "Jaana").append("age", 30)).toBlocking().single();
+
+        List<Document> results = tailed.get(10, TimeUnit.SECONDS);
+        assertEquals(2, results.size());
+        assertEquals(30, results.get(1).get("age"));
+    }
+
+    @Test
+    public void parallelScanTest() {
+        List<Document> all = MongoQuery.forDatabase(database)
+                .parallelScan(COLLECTION_NAME, 3).toList().toBlocking().single();
+        List<Document> jaanas = MongoQuery.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .parallelScan(COLLECTION_NAME, 3, QUser.user.lastName).toList().toBlocking().single();
+
+        assertEquals(4, all.size());
+        assertEquals(4, all.stream().map(document -> document.get("_id")).distinct().count());
+        assertEquals(2, jaanas.size());
+    }
+
+    @Test
+    public void fanOutTest() {
+        MongoDatabase other = client.getDatabase("test2");
+        MongoCollection<Document> otherUsers = other.getCollection(COLLECTION_NAME);
+        otherUsers.drop().toBlocking().single();
+        otherUsers.insertMany(Arrays.asList(
+                new Document("firstName", "Aatu"),
+                new Document("firstName", "Jaakkima"),
+                new Document("firstName", "Pekka"))).toBlocking().single();
+        List<MongoDatabase> databases = Arrays.asList(database, other);
+
+        List<Document> all = MongoQuery.forDatabase(database)
+                .fanOutFrom(databases, COLLECTION_NAME).toList().toBlocking().single();
+        List<Document> page = MongoQuery.forDatabase(database)
+                .orderBy(QUser.user.firstName.asc())
+                .offset(1).limit(3)
+                .batchSize(1)
+                .fanOutFrom(databases, COLLECTION_NAME).toList().toBlocking().single();
+
+        assertEquals(7, all.size());
+        assertEquals(Arrays.asList("Jaakki", "Jaakkima", "Jaakko"),
+                page.stream().map(document -> document.getString("firstName")).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void metricsTest() {
+        List<QueryEvent> events = new CopyOnWriteArrayList<QueryEvent>();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        QueryMetrics metrics = event -> {
+            events.add(event);
+            new MicrometerQueryMetrics(registry).record(event);
+        };
+
+        List<Document> jaanas = MongoQuery.forDatabase(database)
+                .metrics(metrics)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(2, jaanas.size());
+        assertEquals(1, events.size());
+        QueryEvent event = events.get(0);
+        assertEquals(COLLECTION_NAME, event.getCollection());
+        assertEquals("find", event.getOperation());
+        assertEquals(2, event.getDocuments());
+        assertTrue(event.getBytes() > 0);
+        assertTrue(event.getFirstDocumentTime(TimeUnit.NANOSECONDS) >= 0);
+        assertTrue(event.getTotalTime(TimeUnit.NANOSECONDS) >= event.getFirstDocumentTime(TimeUnit.NANOSECONDS));
+        assertEquals(1, registry.get("mongodb.query.latency").tag("collection", COLLECTION_NAME).timer().count());
+
+        long count = MongoQuery.forDatabase(database)
+                .metrics(metrics)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchCount(COLLECTION_NAME).toBlocking().single();
+
+        assertEquals(2, count);
+        assertEquals(2, events.size());
+        assertEquals("count", events.get(1).getOperation());
+    }
+
+    @Test
+    public void slowQueryLogTest() {
+        SlowQueryLog slowQueries = new SlowQueryLog(database, 0, TimeUnit.MILLISECONDS, 1.0);
+        MongoQuery.forDatabase(database)
+                .metrics(slowQueries)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+        MongoQuery.forDatabase(database)
+                .metrics(slowQueries)
+                .where(QUser.user.firstName.eq("Jaakko"))
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+        MongoQuery.forDatabase(database)
+                .metrics(slowQueries)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .fetchCount(COLLECTION_NAME).toBlocking().single();
+
+        List<QueryStats> stats = slowQueries.getStats();
+        assertEquals(2, stats.size());
+        QueryStats counts = stats.stream().filter(queryStats -> queryStats.getOperation().equals("count"))
+                .findFirst().get();
+        assertEquals(1, counts.getCount());
+        QueryStats jaanas = stats.stream().filter(queryStats -> queryStats.getOperation().equals("find"))
+                .findFirst().get();
+        assertEquals(2, jaanas.getCount());
+        assertFalse(jaanas.getFingerprint().contains("Jaana"));
+        Awaitility.await().until(() -> jaanas.getPlan() != null);
+        assertEquals("COLLSCAN", jaanas.getPlan());
+        assertEquals(4, jaanas.getDocsExamined());
+        // counts aren't explained as finds
+        assertEquals(null, counts.getPlan());
+    }
+
+    @Test
+    public void indexAdvisorTest() {
+        IndexAdvisor advisor = new IndexAdvisor(database);
+        MongoQuery.forDatabase(database)
+                .metrics(advisor)
+                .where(QUser.user.age.gt(20), QUser.user.firstName.eq("Jaana"))
+                .orderBy(QUser.user.lastName.desc())
+                .fetchFrom(COLLECTION_NAME).toBlocking().single();
+
+        IndexReport before = advisor.advise(COLLECTION_NAME).toBlocking().single();
+        assertEquals(1, before.getSuggested().size());
+        IndexSuggestion suggestion = before.getSuggested().get(0);
+        assertEquals(1, suggestion.getQueryCount());
+        assertEquals(BsonDocument.parse("{firstName: 1, lastName: -1, age: 1}"), suggestion.getKeys());
+        assertEquals(Arrays.asList(suggestion), before.getMissing());
+        assertTrue(before.getRedundant().isEmpty());
+        assertEquals(0, before.getTruncatedQueries());
+
+        collection.createIndex(new Document("firstName", 1)).toBlocking().single();
+        collection.createIndex(new Document("firstName", 1).append("lastName", 1).append("age", 1))
+                .toBlocking().single();
+        collection.createIndex(new Document("age", 1), new IndexOptions().sparse(true)).toBlocking().single();
+        collection.createIndex(new Document("age", 1).append("lastName", 1)).toBlocking().single();
+        try {
+            IndexReport after = advisor.advise(COLLECTION_NAME).toBlocking().single();
+            assertTrue(after.getMissing().isEmpty());
+            assertEquals(1, after.getRedundant().size());
+            assertEquals(BsonDocument.parse("{firstName: 1}"), after.getRedundant().get(0).getDocument("key"));
+        } finally {
+            collection.dropIndexes().toBlocking().single();
+        }
+    }
+
     private Observable<User> addUser(String first, String last) {
         User user = new User(first, last);
 
@@ -0,0 +1,121 @@
+package com.egopulse.querydsl.mongodb;
+
+import com.egopulse.querydsl.mongodb.domain.QUser;
+import com.jayway.awaitility.Awaitility;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.rx.client.MongoClient;
+import com.mongodb.rx.client.MongoClients;
+import com.mongodb.rx.client.MongoCollection;
+import com.mongodb.rx.client.MongoDatabase;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodProcess;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import rx.observers.TestSubscriber;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Watches a single-node replica set, which has the oplog {@link AsyncMongoQuery#watch} tails
+ */
+public class WatchTest {
+
+    private static final int PORT = 27019;
+
+    private static final String REPLICA_SET = "rs0";
+
+    private static final String COLLECTION_NAME = "user";
+
+    private MongodExecutable exe;
+    private MongodProcess mongoProcess;
+
+    private MongoClient client;
+    private MongoDatabase database;
+    private MongoCollection<Document> collection;
+
+    @Before
+    public void setup() throws IOException {
+        exe = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                .version(Version.Main.V3_4)
+                .net(new Net(PORT, Network.localhostIsIPv6()))
+                .replication(new Storage(null, REPLICA_SET, 0))
+                .build());
+        mongoProcess = exe.start();
+
+        client = MongoClients.create("mongodb://localhost:" + PORT);
+        client.getDatabase("admin").runCommand(new Document("replSetInitiate", new Document("_id", REPLICA_SET)
+                .append("members", Arrays.asList(new Document("_id", 0).append("host", "localhost:" + PORT)))))
+                .toBlocking().single();
+        Awaitility.await().atMost(30, TimeUnit.SECONDS).until(() -> client.getDatabase("admin")
+                .runCommand(new Document("isMaster", 1)).toBlocking().single().getBoolean("ismaster"));
+
+        database = client.getDatabase("test");
+        collection = database.getCollection(COLLECTION_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        mongoProcess.stop();
+        exe.stop();
+    }
+
+    @Test
+    public void watchTest() {
+        Document updated = new Document("firstName", "Jaana").append("lastName", "Aakkonen");
+        Document deleted = new Document("firstName", "Jaana").append("lastName", "BeekkoNen");
+        Document other = new Document("firstName", "Jaakko").append("lastName", "Jantunen");
+        collection.insertMany(Arrays.asList(updated, deleted, other)).toBlocking().single();
+
+        TestSubscriber<ChangeEvent<Document>> subscriber = new TestSubscriber<ChangeEvent<Document>>();
+        MongoQuery.forDatabase(database)
+                .where(QUser.user.firstName.eq("Jaana"))
+                .watch(client.getDatabase("local"), COLLECTION_NAME)
+                .subscribe(subscriber);
+        // the delay lets the watch read the start of the oplog and the matching ids
+        Awaitility.await().pollDelay(1, TimeUnit.SECONDS).until(() -> subscriber.getOnNextEvents().isEmpty());
+
+        Document inserted = new Document("firstName", "Jaana").append("lastName", "Virtanen");
+        collection.insertOne(inserted).toBlocking().single();
+        collection.updateOne(Filters.eq("_id", updated.getObjectId("_id")), Updates.set("firstName", "Johanna"))
+                .toBlocking().single();
+        collection.deleteOne(Filters.eq("_id", deleted.getObjectId("_id"))).toBlocking().single();
+        collection.deleteOne(Filters.eq("_id", other.getObjectId("_id"))).toBlocking().single();
+        // a last matching insert shows that the delete of the never matching document was skipped
+        Document last = new Document("firstName", "Jaana").append("lastName", "Korhonen");
+        collection.insertOne(last).toBlocking().single();
+
+        Awaitility.await().atMost(10, TimeUnit.SECONDS).until(() -> subscriber.getOnNextEvents().size() >= 4);
+        subscriber.assertNoErrors();
+        List<ChangeEvent<Document>> events = subscriber.getOnNextEvents();
+        assertEquals(4, events.size());
+        assertChange(events.get(0), ChangeEvent.Type.INSERT, inserted.getObjectId("_id"));
+        assertEquals("Virtanen", events.get(0).getDocument().getString("lastName"));
+        assertChange(events.get(1), ChangeEvent.Type.DELETE, updated.getObjectId("_id"));
+        assertChange(events.get(2), ChangeEvent.Type.DELETE, deleted.getObjectId("_id"));
+        assertChange(events.get(3), ChangeEvent.Type.INSERT, last.getObjectId("_id"));
+        subscriber.unsubscribe();
+    }
+
+    private static void assertChange(ChangeEvent<Document> event, ChangeEvent.Type type, ObjectId id) {
+        assertEquals(type, event.getType());
+        assertEquals(new BsonObjectId(id), event.getId());
+    }
+
+}